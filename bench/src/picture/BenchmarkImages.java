@@ -0,0 +1,35 @@
+package picture;
+
+import java.util.Random;
+
+/**
+ * Synthetic inputs for the JMH benchmarks: smooth gradients with a little noise, so k-means and
+ * PNG encoding see photo-like colour counts rather than pure noise or flat areas.
+ */
+final class BenchmarkImages {
+  private BenchmarkImages() { }
+
+  /**
+   * Returns a picture of a size written as "widthxheight", seeded so each call with the same
+   * arguments gives the same pixels.
+   */
+  static Picture picture(String size, long seed) {
+    int separator = size.indexOf('x');
+    int width = Integer.parseInt(size.substring(0, separator));
+    int height = Integer.parseInt(size.substring(separator + 1));
+    Picture picture = new Picture(width, height);
+    int[] raster = picture.writableRaster();
+    Random random = new Random(seed);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int noise = random.nextInt(16);
+        int red = 255 * x / Math.max(1, width - 1);
+        int green = 255 * y / Math.max(1, height - 1);
+        int blue = (x + y + (int) seed * 64) & 0xff;
+        raster[y * width + x] = Picture.pack(Math.min(255, red + noise),
+                Math.min(255, green + noise), blue ^ noise);
+      }
+    }
+    return picture;
+  }
+}
@@ -0,0 +1,59 @@
+package picture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The operations that combine several pictures, blend and mosaic, over four inputs of each
+ * benchmark size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules=jdk.incubator.vector"})
+public class CompositionBenchmark {
+  private static final int INPUTS = 4;
+  private static final int TILE_SIZE = 16;
+
+  @Param({"64x64", "512x512", "1920x1080", "3840x2160", "7680x4320"})
+  public String size;
+
+  private List<Picture> pictures;
+
+  @Setup
+  public void setUp() {
+    pictures = new ArrayList<>();
+    for (int i = 0; i < INPUTS; i++) {
+      pictures.add(BenchmarkImages.picture(size, i));
+    }
+  }
+
+  @Benchmark
+  public Picture blend() {
+    Picture first = pictures.get(0);
+    BlendAccumulator accumulator = new BlendAccumulator(first.getWidth(), first.getHeight());
+    for (Picture picture : pictures) {
+      accumulator.add(picture);
+    }
+    return accumulator.result();
+  }
+
+  @Benchmark
+  public Picture mosaic() {
+    return Mosaic.fromPictures(pictures, TILE_SIZE);
+  }
+}
@@ -0,0 +1,44 @@
+package picture;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The compress operation, k-means down to the CLI's default 60 colours, with the indexed output
+ * the CLI writes by default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CompressBenchmark {
+  private static final int K = 60;
+
+  @Param({"64x64", "512x512", "1920x1080", "3840x2160", "7680x4320"})
+  public String size;
+
+  private BufferedImage image;
+
+  @Setup
+  public void setUp() {
+    image = BenchmarkImages.picture(size, 0).image();
+  }
+
+  @Benchmark
+  public BufferedImage compress() {
+    return new KmeansClustering().evaluateIndexed(image, K);
+  }
+}
@@ -0,0 +1,104 @@
+package picture;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The convolution engine against a textbook per-pixel, per-weight loop on one thread, for a small
+ * direct kernel, a large separable one and the two-kernel edge magnitude.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules=jdk.incubator.vector"})
+public class ConvolutionBenchmark {
+
+  @Param({"512x512", "1920x1080"})
+  public String size;
+
+  private Picture picture;
+  private Kernel sharpen;
+  private Kernel gaussian;
+
+  @Setup
+  public void setUp() {
+    picture = BenchmarkImages.picture(size, 0);
+    sharpen = Kernel.sharpen();
+    gaussian = Kernel.gaussian(2);
+  }
+
+  @Benchmark
+  public Picture sharpen() {
+    return picture.convolve(sharpen, BorderMode.CLAMP);
+  }
+
+  @Benchmark
+  public Picture sharpenNaive() {
+    return naive(picture, sharpen, BorderMode.CLAMP);
+  }
+
+  @Benchmark
+  public Picture gaussian() {
+    return picture.convolve(gaussian, BorderMode.MIRROR);
+  }
+
+  @Benchmark
+  public Picture gaussianDirect() {
+    return Convolution.apply(picture, gaussian, BorderMode.MIRROR, false);
+  }
+
+  @Benchmark
+  public Picture gaussianNaive() {
+    return naive(picture, gaussian, BorderMode.MIRROR);
+  }
+
+  @Benchmark
+  public Picture edges() {
+    return picture.edges(BorderMode.CLAMP);
+  }
+
+  /**
+   * Sums every weight times every sample through the border mode, in float, for each pixel.
+   */
+  private static Picture naive(Picture picture, Kernel kernel, BorderMode mode) {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    int radiusX = kernel.getWidth() / 2;
+    int radiusY = kernel.getHeight() / 2;
+    int[] src = picture.raster();
+    Picture output = new Picture(width, height);
+    int[] dst = output.writableRaster();
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        float red = 0;
+        float green = 0;
+        float blue = 0;
+        for (int dy = -radiusY; dy <= radiusY; dy++) {
+          int row = mode.index(y + dy, height) * width;
+          for (int dx = -radiusX; dx <= radiusX; dx++) {
+            int rgb = src[row + mode.index(x + dx, width)];
+            float weight = kernel.weight(dx + radiusX, dy + radiusY);
+            red += weight * Picture.red(rgb);
+            green += weight * Picture.green(rgb);
+            blue += weight * Picture.blue(rgb);
+          }
+        }
+        dst[y * width + x] = Picture.pack(Convolution.clamp(Math.round(red)),
+                Convolution.clamp(Math.round(green)), Convolution.clamp(Math.round(blue)));
+      }
+    }
+    return output;
+  }
+}
@@ -0,0 +1,83 @@
+package picture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Runs the same small invert and blur jobs three ways: one PictureProcessor JVM per job, one
+ * DaemonClient JVM per job against a running daemon, and all jobs over a single connection to
+ * the daemon. The daemon runs in its own JVM, as it would in use.
+ *
+ * <p>Run as java -cp out picture.DaemonBenchmark [jobs] [image], e.g. with 1000 jobs. The
+ * default image is images/rainbow64x64doc.png. Launching a JVM per job is slow, so those two
+ * modes run a tenth of the jobs and report the per-job time.
+ */
+public class DaemonBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    String image = new File(args.length > 1 ? args[1] : "images/rainbow64x64doc.png")
+            .getAbsolutePath();
+    File directory = Files.createTempDirectory("daemon-bench").toFile();
+    String socket = new File(directory, "daemon.sock").getPath();
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+            + "java";
+    String classPath = System.getProperty("java.class.path");
+
+    int launched = Math.max(1, jobs / 10);
+    long start = System.nanoTime();
+    for (int i = 0; i < launched; i++) {
+      run(java, "-cp", classPath, "picture.PictureProcessor", operation(i), image,
+              output(directory, i));
+    }
+    report("per-process CLI", launched, System.nanoTime() - start);
+
+    Process daemon = new ProcessBuilder(java, "-cp", classPath, "picture.PictureProcessor",
+            "daemon", socket).inheritIO().start();
+    while (!new File(socket).exists()) {
+      Thread.sleep(10);
+    }
+
+    start = System.nanoTime();
+    for (int i = 0; i < launched; i++) {
+      run(java, "-cp", classPath, "picture.DaemonClient", socket, operation(i), image,
+              output(directory, i));
+    }
+    report("per-process client", launched, System.nanoTime() - start);
+
+    try (DaemonClient client = new DaemonClient(socket)) {
+      start = System.nanoTime();
+      for (int i = 0; i < jobs; i++) {
+        if (!client.run(operation(i), image, output(directory, i)).ok) {
+          throw new IllegalStateException("Job " + i + " failed");
+        }
+      }
+      report("daemon connection", jobs, System.nanoTime() - start);
+    }
+    try (DaemonClient client = new DaemonClient(socket)) {
+      client.run(ProcessingDaemon.SHUTDOWN);
+    }
+    daemon.waitFor();
+  }
+
+  private static String operation(int job) {
+    return job % 2 == 0 ? "invert" : "blur";
+  }
+
+  private static String output(File directory, int job) {
+    return new File(directory, "out" + job % 16 + ".png").getPath();
+  }
+
+  private static void run(String... command) throws IOException, InterruptedException {
+    Process process = new ProcessBuilder(command).inheritIO().start();
+    if (process.waitFor() != 0) {
+      throw new IllegalStateException("Job failed: " + String.join(" ", command));
+    }
+  }
+
+  private static void report(String mode, int jobs, long nanos) {
+    System.out.printf("%-20s %5d jobs %10.1f ms %8.2f ms/job%n", mode, jobs, nanos / 1e6,
+            nanos / 1e6 / jobs);
+  }
+}
@@ -0,0 +1,52 @@
+package picture;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Compresses each image to k colours and compares the size and encode time of the PNG written
+ * from the RGB output against the one written from the indexed-colour output.
+ *
+ * <p>Run as java -cp out picture.PaletteBenchmark [k] [rounds] image.png..., e.g. over
+ * images/*.png.
+ */
+public class PaletteBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    int k = Integer.parseInt(args[0]);
+    int rounds = Integer.parseInt(args[1]);
+    System.out.printf("%-32s %10s %10s %10s %10s%n", "image", "rgb bytes", "rgb ms",
+            "idx bytes", "idx ms");
+    for (int i = 2; i < args.length; i++) {
+      BufferedImage source = ImageIO.read(new File(args[i]));
+      KmeansClustering clustering = new KmeansClustering();
+      BufferedImage rgb = clustering.evaluate(source, k);
+      BufferedImage indexed = clustering.evaluateIndexed(source, k);
+      long[] rgbResult = encode(rgb, rounds);
+      long[] indexedResult = encode(indexed, rounds);
+      System.out.printf("%-32s %10d %10.2f %10d %10.2f%n", new File(args[i]).getName(),
+              rgbResult[0], rgbResult[1] / 1e6, indexedResult[0], indexedResult[1] / 1e6);
+    }
+  }
+
+  /**
+   * Returns the encoded size in bytes and the best encode time in nanoseconds.
+   */
+  private static long[] encode(BufferedImage image, int rounds) throws IOException {
+    long best = Long.MAX_VALUE;
+    int size = 0;
+    for (int i = 0; i <= rounds; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      long start = System.nanoTime();
+      ImageIO.write(image, "png", out);
+      if (i > 0) {
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      size = out.size();
+    }
+    return new long[] {size, best};
+  }
+}
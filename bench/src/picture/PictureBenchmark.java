@@ -0,0 +1,87 @@
+package picture;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The single-picture PictureProcessor operations at every benchmark size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules=jdk.incubator.vector"})
+public class PictureBenchmark {
+
+  @Param({"64x64", "512x512", "1920x1080", "3840x2160", "7680x4320"})
+  public String size;
+
+  private Picture picture;
+  private ChannelLut chain;
+
+  @Setup
+  public void setUp() {
+    picture = BenchmarkImages.picture(size, 0);
+    chain = ChannelLut.invert().andThen(ChannelLut.darken(2)).andThen(ChannelLut.gamma(2.2))
+            .andThen(ChannelLut.brightness(10)).andThen(ChannelLut.contrast(1.2));
+  }
+
+  @Benchmark
+  public Picture invert() {
+    return picture.invert();
+  }
+
+  @Benchmark
+  public Picture grayscale() {
+    return picture.grayScale();
+  }
+
+  @Benchmark
+  public Picture andyWarholStyle() {
+    return picture.andyWarholStyle();
+  }
+
+  @Benchmark
+  public Picture blur() {
+    return picture.blur();
+  }
+
+  @Benchmark
+  public Picture rotate() {
+    return picture.rotate(90);
+  }
+
+  @Benchmark
+  public Picture makeDark() {
+    return picture.makeDark(50);
+  }
+
+  @Benchmark
+  public Picture gamma() {
+    return picture.gamma(2.2);
+  }
+
+  /**
+   * Invert, make dark, gamma, brightness and contrast composed into one table.
+   */
+  @Benchmark
+  public Picture lutChain() {
+    return picture.applyLut(chain);
+  }
+
+  @Benchmark
+  public Picture flip() {
+    return picture.flip("H");
+  }
+}
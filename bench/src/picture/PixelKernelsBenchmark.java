@@ -0,0 +1,81 @@
+package picture;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The scalar and vector point kernels over a whole raster on one thread, without the tiling and
+ * allocation of the Picture operations, so the two differ only in their inner loops.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules=jdk.incubator.vector"})
+public class PixelKernelsBenchmark {
+
+  @Param({"512x512", "1920x1080", "3840x2160"})
+  public String size;
+
+  @Param({"scalar", "vector"})
+  public String kernels;
+
+  private PixelKernels kernel;
+  private int[] src;
+  private int[] dst;
+  private int[] red;
+  private int[] green;
+  private int[] blue;
+
+  @Setup
+  public void setUp() {
+    kernel = kernels.equals("vector") ? PixelKernels.vector() : PixelKernels.scalar();
+    if (kernel == null) {
+      throw new IllegalStateException("The Vector API is not available in this JVM");
+    }
+    src = BenchmarkImages.picture(size, 0).raster();
+    dst = new int[src.length];
+    red = new int[src.length];
+    green = new int[src.length];
+    blue = new int[src.length];
+    for (int seed = 1; seed <= 4; seed++) {
+      kernel.accumulate(BenchmarkImages.picture(size, seed).raster(), 0, red, green, blue, 0,
+              src.length);
+    }
+  }
+
+  @Benchmark
+  public int[] invert() {
+    kernel.invert(src, dst, 0, src.length);
+    return dst;
+  }
+
+  @Benchmark
+  public int[] grayscale() {
+    kernel.grayScale(src, dst, 0, src.length);
+    return dst;
+  }
+
+  @Benchmark
+  public int[] makeDark() {
+    kernel.makeDark(src, dst, 0, src.length, 50);
+    return dst;
+  }
+
+  @Benchmark
+  public int[] blendAverage() {
+    kernel.average(red, green, blue, 4, dst, 0, src.length);
+    return dst;
+  }
+}
@@ -0,0 +1,38 @@
+package picture;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes each image in every PNG mode and prints the file size and the best encode time, with
+ * the given number of encoder threads, to show what each mode trades.
+ *
+ * <p>Run as java -cp out picture.PngBenchmark [threads] [rounds] image.png..., e.g. over
+ * images/*.png.
+ */
+public class PngBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    TileExecutor executor = new TileExecutor(Integer.parseInt(args[0]));
+    int rounds = Integer.parseInt(args[1]);
+    File output = File.createTempFile("png-benchmark", ".png");
+    output.deleteOnExit();
+    System.out.printf("%-32s %-9s %12s %10s%n", "image", "mode", "bytes", "ms");
+    for (int i = 2; i < args.length; i++) {
+      Picture picture = new Picture(args[i]);
+      for (PngEncoder.Mode mode : PngEncoder.Mode.values()) {
+        PngEncoder encoder = new PngEncoder(mode, executor);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round <= rounds; round++) {
+          long start = System.nanoTime();
+          encoder.write(picture.image(), output.getPath());
+          if (round > 0) {
+            best = Math.min(best, System.nanoTime() - start);
+          }
+        }
+        System.out.printf("%-32s %-9s %12d %10.2f%n", new File(args[i]).getName(), mode,
+                output.length(), best / 1e6);
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package picture;
+
+import java.util.Random;
+
+/**
+ * Compares rotate, flip and transpose against the previous implementation, which turned the
+ * picture one quarter at a time and wrote each step in plain column order.
+ *
+ * <p>Run with a large heap, e.g. java -Xmx4g -cp out picture.RotateBenchmark [size] [rounds].
+ * The default size is 8192 (an 8K x 8K picture).
+ */
+public class RotateBenchmark {
+
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    Picture picture = randomPicture(size, size);
+
+    report("rotate 90 (stepwise)", rounds, () -> stepwiseRotate(picture, 90));
+    report("rotate 90 (blocked)", rounds, () -> picture.rotate(90));
+    report("rotate 270 (stepwise)", rounds, () -> stepwiseRotate(picture, 270));
+    report("rotate 270 (blocked)", rounds, () -> picture.rotate(270));
+    report("flip H", rounds, () -> picture.flip("H"));
+    report("flip V", rounds, () -> picture.flip("V"));
+    report("transpose", rounds, picture::transpose);
+  }
+
+  static Picture randomPicture(int width, int height) {
+    Picture picture = new Picture(width, height);
+    int[] raster = picture.writableRaster();
+    Random random = new Random(1);
+    for (int i = 0; i < raster.length; i++) {
+      raster[i] = random.nextInt() & 0xffffff;
+    }
+    return picture;
+  }
+
+  static void report(String name, int rounds, Runnable operation) {
+    operation.run();
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < rounds; i++) {
+      long start = System.nanoTime();
+      operation.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    System.out.printf("%-24s %10.1f ms%n", name, best / 1e6);
+  }
+
+  private static Picture stepwiseRotate(Picture picture, int angle) {
+    Picture rotated = picture;
+    for (; angle > 0; angle -= 90) {
+      int width = rotated.getWidth();
+      int height = rotated.getHeight();
+      int[] src = rotated.raster();
+      Picture next = new Picture(height, width);
+      int[] dst = next.writableRaster();
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          dst[x * height + height - y - 1] = src[y * width + x];
+        }
+      }
+      rotated = next;
+    }
+    return rotated;
+  }
+}
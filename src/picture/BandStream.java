@@ -0,0 +1,513 @@
+package picture;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.UnaryOperator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Runs operations that only need nearby rows on image files without decoding them whole. The
+ * input is read in horizontal bands on a background thread, a couple of bands ahead, while the
+ * current band is transformed and handed to the PNG writer, which pulls rows as it encodes them.
+ * Peak memory is a few bands whatever the picture's size.
+ *
+ * <p>PNGs that PngRowReader handles are decoded in a single pass; other files are read band by
+ * band through ImageReader source regions. A vertical flip needs the bands in reverse order, so
+ * its input is first spooled to a temporary raw raster file, unless it already is one.
+ */
+final class BandStream {
+  static final int BAND_PIXELS = 1 << 20;
+  static final long STREAM_PIXELS = 1L << 24;
+  private static final int QUEUE_CAPACITY = 2;
+
+  private BandStream() { }
+
+  /**
+   * Reads an image top to bottom, a few rows at a time.
+   */
+  interface RowReader extends Closeable {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Decodes the next rows as 0xRRGGBB values into dst, width ints per row from offset on.
+     */
+    void readRows(int rows, int[] dst, int offset) throws IOException;
+  }
+
+  /**
+   * Supplies the rows of the output in bands, top to bottom.
+   */
+  private interface BandSupplier {
+    Picture next() throws IOException;
+  }
+
+  /**
+   * Opens the file for reading in bands, choosing the fastest reader for its format.
+   */
+  static RowReader open(String filepath) throws IOException {
+    if (RawRaster.isRaw(filepath)) {
+      return new RawRowReader(MappedPicture.open(filepath));
+    }
+    if (PngRowReader.isSupported(filepath)) {
+      return new PngRowReader(filepath);
+    }
+    return new RegionRowReader(filepath);
+  }
+
+  /**
+   * Streams the input through an operation and writes the result to the output, as PNG or, for a
+   * ".raw" path, as a raw raster. The operation is applied to each band together with up to halo
+   * rows above and below it, and must return a picture of the same size; only the band's own
+   * rows of the result are kept. Rows beyond the picture's edges are clipped for IGNORE and
+   * filled from the nearest rows otherwise, clamped or mirrored, so WRAP is not supported.
+   */
+  static void transform(String input, String output, int halo, BorderMode mode,
+                        UnaryOperator<Picture> operation) throws IOException {
+    if (mode == BorderMode.WRAP) {
+      throw new IllegalArgumentException("Wrapped borders need the whole picture");
+    }
+    try (RowReader reader = open(input)) {
+      int width = reader.getWidth();
+      int height = reader.getHeight();
+      int bandHeight = Math.max(2 * halo + 1, BAND_PIXELS / Math.max(1, width));
+      Decoder decoder = new Decoder(reader, bandHeight);
+      decoder.start();
+      try {
+        write(new Windowed(decoder, width, height, bandHeight, halo, mode, operation),
+                width, height, output);
+      } finally {
+        decoder.interrupt();
+      }
+      decoder.rethrow();
+    }
+  }
+
+  /**
+   * Streams the input upside down into the output.
+   */
+  static void flipVertical(String input, String output) throws IOException {
+    File spool = null;
+    MappedPicture source;
+    if (RawRaster.isRaw(input)) {
+      source = MappedPicture.open(input);
+    } else {
+      spool = File.createTempFile("picture", RawRaster.EXTENSION);
+      spool(input, spool.getPath());
+      source = MappedPicture.open(spool.getPath());
+    }
+    try (MappedPicture mapped = source) {
+      int width = mapped.getWidth();
+      int height = mapped.getHeight();
+      int bandHeight = Math.max(1, BAND_PIXELS / Math.max(1, width));
+      int[] bottom = {height};
+      write(() -> {
+        int top = Math.max(0, bottom[0] - bandHeight);
+        Picture band = mapped.readRows(top, bottom[0]).flip("V");
+        bottom[0] = top;
+        return band;
+      }, width, height, output);
+    } finally {
+      if (spool != null) {
+        Files.deleteIfExists(spool.toPath());
+      }
+    }
+  }
+
+  /**
+   * Copies the input into a raw raster file, band by band.
+   */
+  private static void spool(String input, String raw) throws IOException {
+    try (RowReader reader = open(input);
+         MappedPicture target = MappedPicture.create(raw, reader.getWidth(), reader.getHeight())) {
+      int width = reader.getWidth();
+      int bandHeight = Math.max(1, BAND_PIXELS / Math.max(1, width));
+      for (int y = 0; y < reader.getHeight(); y += bandHeight) {
+        Picture band = new Picture(width, Math.min(bandHeight, reader.getHeight() - y));
+        reader.readRows(band.getHeight(), band.writableRaster(), 0);
+        target.writeRows(y, band);
+      }
+    }
+  }
+
+  private static void write(BandSupplier bands, int width, int height, String output)
+          throws IOException {
+    if (RawRaster.isRaw(output)) {
+      try (MappedPicture target = MappedPicture.create(output, width, height)) {
+        for (int y = 0; y < height; ) {
+          Picture band = bands.next();
+          target.writeRows(y, band);
+          y += band.getHeight();
+        }
+      }
+      return;
+    }
+    if (!ImageIO.write(new BandImage(bands, width, height), "png", new File(output))) {
+      throw new IOException("No PNG writer available");
+    }
+  }
+
+  /**
+   * Decodes bands on its own thread, a bounded number ahead of the consumer.
+   */
+  private static final class Decoder extends Thread {
+    private final RowReader reader;
+    private final int bandHeight;
+    private final BlockingQueue<int[]> bands = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile IOException failure;
+
+    Decoder(RowReader reader, int bandHeight) {
+      super("band decoder");
+      setDaemon(true);
+      this.reader = reader;
+      this.bandHeight = bandHeight;
+    }
+
+    @Override
+    public void run() {
+      int width = reader.getWidth();
+      int height = reader.getHeight();
+      try {
+        for (int y = 0; y < height; y += bandHeight) {
+          int[] band = new int[width * Math.min(bandHeight, height - y)];
+          reader.readRows(band.length / Math.max(1, width), band, 0);
+          bands.put(band);
+        }
+      } catch (IOException | RuntimeException e) {
+        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+        try {
+          bands.put(new int[0]);
+        } catch (InterruptedException stopped) {
+          // The consumer stopped early.
+        }
+      } catch (InterruptedException e) {
+        // The consumer stopped early.
+      }
+    }
+
+    int[] take() throws IOException {
+      try {
+        int[] band = bands.take();
+        rethrow();
+        return band;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+    }
+
+    void rethrow() throws IOException {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /**
+   * Applies the operation to each band with its halo, keeping the previous, current and next
+   * decoded bands so that any halo up to one band tall is at hand.
+   */
+  private static final class Windowed implements BandSupplier {
+    private final Decoder decoder;
+    private final int width;
+    private final int height;
+    private final int bandHeight;
+    private final int halo;
+    private final BorderMode mode;
+    private final UnaryOperator<Picture> operation;
+    private int[] previous;
+    private int[] current;
+    private int[] next;
+    private int y0;
+
+    Windowed(Decoder decoder, int width, int height, int bandHeight, int halo, BorderMode mode,
+             UnaryOperator<Picture> operation) {
+      this.decoder = decoder;
+      this.width = width;
+      this.height = height;
+      this.bandHeight = bandHeight;
+      this.halo = halo;
+      this.mode = mode;
+      this.operation = operation;
+      this.y0 = -bandHeight;
+    }
+
+    @Override
+    public Picture next() throws IOException {
+      previous = current;
+      current = next == null ? decoder.take() : next;
+      y0 += bandHeight;
+      int y1 = Math.min(height, y0 + bandHeight);
+      next = halo > 0 && y1 < height ? decoder.take() : null;
+
+      int top = mode == BorderMode.IGNORE ? Math.max(0, y0 - halo) : y0 - halo;
+      int bottom = mode == BorderMode.IGNORE ? Math.min(height, y1 + halo) : y1 + halo;
+      Picture window = new Picture(width, bottom - top);
+      for (int y = top; y < bottom; y++) {
+        int row = mode.index(y, height);
+        int[] source = row < y0 ? previous : row < y1 ? current : next;
+        int sourceRow = row < y0 ? row - (y0 - bandHeight) : row < y1 ? row - y0 : row - y1;
+        System.arraycopy(source, sourceRow * width, window.writableRaster(), (y - top) * width,
+                width);
+      }
+      Picture result = operation.apply(window);
+      if (top == y0 && bottom == y1) {
+        return result;
+      }
+      Picture band = new Picture(width, y1 - y0);
+      System.arraycopy(result.raster(), (y0 - top) * width, band.writableRaster(), 0,
+              (y1 - y0) * width);
+      return band;
+    }
+  }
+
+  private static final class RawRowReader implements RowReader {
+    private final MappedPicture picture;
+    private int nextRow;
+
+    RawRowReader(MappedPicture picture) {
+      this.picture = picture;
+    }
+
+    @Override
+    public int getWidth() {
+      return picture.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+      return picture.getHeight();
+    }
+
+    @Override
+    public void readRows(int rows, int[] dst, int offset) {
+      Picture band = picture.readRows(nextRow, nextRow + rows);
+      System.arraycopy(band.raster(), 0, dst, offset, rows * getWidth());
+      nextRow += rows;
+    }
+
+    @Override
+    public void close() {
+      picture.close();
+    }
+  }
+
+  /**
+   * Reads any format ImageIO knows through source regions. Formats that cannot seek to a row
+   * decode from the top on every read, so this is the slow path.
+   */
+  private static final class RegionRowReader implements RowReader {
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+    private int nextRow;
+
+    RegionRowReader(String filepath) throws IOException {
+      input = ImageIO.createImageInputStream(new File(filepath));
+      try {
+        reader = ImageFiles.reader(input, filepath);
+        reader.setInput(input, false, true);
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+      } catch (IOException | RuntimeException e) {
+        if (input != null) {
+          input.close();
+        }
+        throw e;
+      }
+    }
+
+    @Override
+    public int getWidth() {
+      return width;
+    }
+
+    @Override
+    public int getHeight() {
+      return height;
+    }
+
+    @Override
+    public void readRows(int rows, int[] dst, int offset) throws IOException {
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceRegion(new Rectangle(0, nextRow, width, rows));
+      Picture band = new Picture(reader.read(0, param));
+      System.arraycopy(band.raster(), 0, dst, offset, rows * width);
+      nextRow += rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.dispose();
+      input.close();
+    }
+  }
+
+  /**
+   * Presents the supplied bands as an image for ImageIO's writers, which request one row at a
+   * time from top to bottom. Each request is served from the current band, moving on to the next
+   * band when the rows run past it.
+   */
+  private static final class BandImage implements RenderedImage {
+    private static final ColorModel COLOUR_MODEL =
+            new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+    private final BandSupplier bands;
+    private final int width;
+    private final int height;
+    private Picture band;
+    private int bandTop;
+
+    BandImage(BandSupplier bands, int width, int height) {
+      this.bands = bands;
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+      WritableRaster rows = COLOUR_MODEL.createCompatibleWritableRaster(rect.width, rect.height)
+              .createWritableTranslatedChild(rect.x, rect.y);
+      for (int y = rect.y; y < rect.y + rect.height; y++) {
+        Raster row = row(y);
+        rows.setRect(row.createChild(rect.x, y, rect.width, 1, rect.x, y, null));
+      }
+      return rows;
+    }
+
+    private Raster row(int y) {
+      try {
+        while (band == null || y >= bandTop + band.getHeight()) {
+          bandTop += band == null ? 0 : band.getHeight();
+          band = bands.next();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      if (y < bandTop) {
+        throw new IllegalStateException("Rows must be requested from top to bottom");
+      }
+      return band.image().getRaster().createChild(0, y - bandTop, width, 1, 0, y, null);
+    }
+
+    @Override
+    public Raster getData() {
+      return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+      WritableRaster target = raster != null ? raster
+              : COLOUR_MODEL.createCompatibleWritableRaster(width, height);
+      target.setRect(getData(target.getBounds()));
+      return target;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+      return getData();
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+      return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+      return java.awt.Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+      return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+      return COLOUR_MODEL;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+      return COLOUR_MODEL.createCompatibleSampleModel(width, height);
+    }
+
+    @Override
+    public int getWidth() {
+      return width;
+    }
+
+    @Override
+    public int getHeight() {
+      return height;
+    }
+
+    @Override
+    public int getMinX() {
+      return 0;
+    }
+
+    @Override
+    public int getMinY() {
+      return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+      return 1;
+    }
+
+    @Override
+    public int getNumYTiles() {
+      return 1;
+    }
+
+    @Override
+    public int getMinTileX() {
+      return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+      return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+      return width;
+    }
+
+    @Override
+    public int getTileHeight() {
+      return height;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+      return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+      return 0;
+    }
+  }
+}
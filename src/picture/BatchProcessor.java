@@ -0,0 +1,306 @@
+package picture;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Applies one transform to many image files in three overlapping stages: decoding on a pool of
+ * I/O threads, the transform on a pool of CPU threads, and PNG encoding and writing on the I/O
+ * threads again. The stages hand pictures over through bounded queues, so a slow stage holds the
+ * earlier ones back and at most a fixed number of decoded pictures are alive at once, however
+ * many files there are. A file that fails in any stage is reported and skipped.
+ */
+final class BatchProcessor {
+  static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+  private static final Job END = new Job(null, null);
+
+  private final int ioThreads;
+  private final int cpuThreads;
+  private final int queueCapacity;
+  private final PrintStream errors;
+  private PngEncoder.Mode pngMode = PngEncoder.Mode.DEFAULT;
+
+  /**
+   * Creates a batch run with the given number of I/O threads (used by both the decode and the
+   * encode stage), CPU threads, and room for queueCapacity pictures between two stages. Failures
+   * are reported to errors.
+   */
+  BatchProcessor(int ioThreads, int cpuThreads, int queueCapacity, PrintStream errors) {
+    if (ioThreads < 1 || cpuThreads < 1 || queueCapacity < 1) {
+      throw new IllegalArgumentException("Thread counts and queue capacity must be positive");
+    }
+    this.ioThreads = ioThreads;
+    this.cpuThreads = cpuThreads;
+    this.queueCapacity = queueCapacity;
+    this.errors = errors;
+  }
+
+  /**
+   * Sets how the encode stage compresses its PNGs.
+   */
+  void setPngMode(PngEncoder.Mode pngMode) {
+    this.pngMode = pngMode;
+  }
+
+  /**
+   * Lists the files a batch reads: every regular file of a directory, or the files matching a
+   * glob such as "images/*.png" whose directory part has no wildcards. Files are sorted by name.
+   */
+  static List<Path> inputs(String pattern) {
+    Path path = Paths.get(pattern);
+    Path directory = Files.isDirectory(path) ? path : path.toAbsolutePath().getParent();
+    String glob = Files.isDirectory(path) ? "*" : path.getFileName().toString();
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+      for (Path file : stream) {
+        if (Files.isRegularFile(file)) {
+          files.add(file);
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    files.sort(null);
+    return files;
+  }
+
+  /**
+   * Transforms every input and writes it as PNG into the output directory, under its own name
+   * with the extension replaced by ".png". Inputs whose outputs would share a name, such as
+   * a.jpg and a.png, fail rather than overwrite each other. Returns once every file is written
+   * or has failed; if a stage's thread dies instead, the run is stopped and the cause thrown.
+   */
+  Report run(List<Path> inputs, Path outputDirectory, UnaryOperator<Picture> transform) {
+    try {
+      Files.createDirectories(outputDirectory);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(queueCapacity);
+    BlockingQueue<Job> transformed = new ArrayBlockingQueue<>(queueCapacity);
+    AtomicInteger next = new AtomicInteger();
+    AtomicInteger decoders = new AtomicInteger(ioThreads);
+    AtomicInteger workers = new AtomicInteger(cpuThreads);
+    AtomicInteger written = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    AtomicLong pixels = new AtomicLong();
+    AtomicReference<Throwable> died = new AtomicReference<>();
+    long start = System.nanoTime();
+    List<Path> sources = withDistinctOutputs(inputs, failed);
+
+    ExecutorService decodePool = Executors.newFixedThreadPool(ioThreads);
+    ExecutorService cpuPool = Executors.newFixedThreadPool(cpuThreads);
+    ExecutorService encodePool = Executors.newFixedThreadPool(ioThreads);
+    ExecutorService[] pools = {decodePool, cpuPool, encodePool};
+    submit(decodePool, ioThreads, guarded(() -> {
+      try {
+        for (int i = next.getAndIncrement(); i < sources.size(); i = next.getAndIncrement()) {
+          Path source = sources.get(i);
+          Picture picture;
+          try {
+            picture = new Picture(source.toString());
+          } catch (RuntimeException | Error e) {
+            fail(source, "decode", e, failed);
+            continue;
+          }
+          put(decoded, new Job(source, picture));
+        }
+      } finally {
+        if (decoders.decrementAndGet() == 0) {
+          for (int w = 0; w < cpuThreads; w++) {
+            put(decoded, END);
+          }
+        }
+      }
+    }, died, pools));
+    submit(cpuPool, cpuThreads, guarded(() -> {
+      try {
+        for (Job job = take(decoded); job != END; job = take(decoded)) {
+          Picture picture;
+          try {
+            picture = transform.apply(job.picture);
+          } catch (RuntimeException | Error e) {
+            fail(job.source, "transform", e, failed);
+            continue;
+          }
+          put(transformed, new Job(job.source, picture));
+        }
+      } finally {
+        if (workers.decrementAndGet() == 0) {
+          for (int w = 0; w < ioThreads; w++) {
+            put(transformed, END);
+          }
+        }
+      }
+    }, died, pools));
+    submit(encodePool, ioThreads, guarded(() -> {
+      for (Job job = take(transformed); job != END; job = take(transformed)) {
+        try {
+          job.picture.saveAs(outputDirectory.resolve(outputName(job.source)).toString(),
+                  pngMode);
+          written.incrementAndGet();
+          pixels.addAndGet((long) job.picture.getWidth() * job.picture.getHeight());
+        } catch (RuntimeException | Error e) {
+          fail(job.source, "encode", e, failed);
+        }
+      }
+    }, died, pools));
+    awaitAll(pools);
+    Throwable death = died.get();
+    if (death instanceof Error) {
+      throw (Error) death;
+    } else if (death != null) {
+      throw new IllegalStateException("Batch stopped", death);
+    }
+    return new Report(written.get(), failed.get(), pixels.get(), System.nanoTime() - start);
+  }
+
+  /**
+   * Returns the inputs in order, except those whose output name another input shares, which fail.
+   */
+  private List<Path> withDistinctOutputs(List<Path> inputs, AtomicInteger failed) {
+    Map<String, Integer> outputs = new HashMap<>();
+    for (Path input : inputs) {
+      outputs.merge(outputName(input), 1, Integer::sum);
+    }
+    List<Path> distinct = new ArrayList<>();
+    for (Path input : inputs) {
+      String output = outputName(input);
+      if (outputs.get(output) == 1) {
+        distinct.add(input);
+      } else {
+        failed.incrementAndGet();
+        errors.println("skipped " + input + ": another input is also written as " + output);
+      }
+    }
+    return distinct;
+  }
+
+  private void fail(Path source, String stage, Throwable e, AtomicInteger failed) {
+    failed.incrementAndGet();
+    Throwable cause = e.getCause() == null ? e : e.getCause();
+    errors.println("skipped " + source + ": " + stage + " failed: " + cause);
+  }
+
+  /**
+   * Returns the stage task bound to the caller's stats which, should it die rather than finish,
+   * records why and stops every pool. Stopping interrupts the other stages, so none is left
+   * blocked on a queue that the dead task would have filled or drained.
+   */
+  private static Runnable guarded(Runnable task, AtomicReference<Throwable> died,
+                                  ExecutorService... pools) {
+    return Instrumentation.bound(() -> {
+      try {
+        task.run();
+      } catch (RuntimeException | Error e) {
+        if (died.compareAndSet(null, e)) {
+          for (ExecutorService pool : pools) {
+            pool.shutdownNow();
+          }
+        }
+      }
+    });
+  }
+
+  private static void submit(ExecutorService pool, int threads, Runnable task) {
+    try {
+      for (int t = 0; t < threads; t++) {
+        pool.execute(task);
+      }
+    } catch (RejectedExecutionException e) {
+      // A task has already died and stopped the pools.
+    }
+  }
+
+  private static String outputName(Path source) {
+    String name = source.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    return (dot > 0 ? name.substring(0, dot) : name) + ".png";
+  }
+
+  private static void put(BlockingQueue<Job> queue, Job job) {
+    try {
+      queue.put(job);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Job take(BlockingQueue<Job> queue) {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void awaitAll(ExecutorService... pools) {
+    for (ExecutorService pool : pools) {
+      pool.shutdown();
+    }
+    try {
+      for (ExecutorService pool : pools) {
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final class Job {
+    final Path source;
+    final Picture picture;
+
+    Job(Path source, Picture picture) {
+      this.source = source;
+      this.picture = picture;
+    }
+  }
+
+  /**
+   * The outcome of a batch run: how many files were written and failed, the pixels written, and
+   * the wall-clock time the run took.
+   */
+  static final class Report {
+    final int written;
+    final int failed;
+    final long pixels;
+    final long nanos;
+
+    Report(int written, int failed, long pixels, long nanos) {
+      this.written = written;
+      this.failed = failed;
+      this.pixels = pixels;
+      this.nanos = nanos;
+    }
+
+    @Override
+    public String toString() {
+      double seconds = nanos / 1e9;
+      return String.format("%d images written, %d failed in %.2f s: %.1f images/s, %.2f MP/s",
+              written, failed, seconds, written / seconds, pixels / 1e6 / seconds);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package picture;
+
+import java.awt.Dimension;
+import java.util.List;
+
+/**
+ * Averages any number of pictures one at a time. Each added picture, cropped to the accumulator's
+ * size, is summed into per-channel totals, and the division happens once in result(), so only
+ * the totals and the picture currently being added need to be in memory.
+ */
+public class BlendAccumulator {
+
+  private final int width;
+  private final int height;
+  private final int[] red;
+  private final int[] green;
+  private final int[] blue;
+  private int count;
+
+  public BlendAccumulator(int width, int height) {
+    this.width = width;
+    this.height = height;
+    red = new int[width * height];
+    green = new int[width * height];
+    blue = new int[width * height];
+  }
+
+  /**
+   * Blends the given image files, decoding them one at a time. The output has the smallest width
+   * and height among the inputs, which are read from the file headers up front.
+   */
+  public static Picture blendFiles(List<String> filepaths) {
+    int smallestWidth = Integer.MAX_VALUE;
+    int smallestHeight = Integer.MAX_VALUE;
+    for (String filepath : filepaths) {
+      Dimension size = ImageFiles.dimensions(filepath);
+      smallestWidth = Math.min(smallestWidth, size.width);
+      smallestHeight = Math.min(smallestHeight, size.height);
+    }
+    if (filepaths.isEmpty()) {
+      smallestWidth = 0;
+      smallestHeight = 0;
+    }
+    BlendAccumulator accumulator = new BlendAccumulator(smallestWidth, smallestHeight);
+    for (String filepath : filepaths) {
+      accumulator.add(new Picture(filepath));
+    }
+    return accumulator.result();
+  }
+
+  /**
+   * Adds the top-left width x height region of the picture to the running totals.
+   *
+   * @throws IllegalArgumentException if the picture is smaller than the accumulator.
+   */
+  public void add(Picture picture) {
+    if (picture.getWidth() < width || picture.getHeight() < height) {
+      throw new IllegalArgumentException("Picture of " + picture.getWidth() + "x"
+              + picture.getHeight() + " is smaller than the blend of " + width + "x" + height);
+    }
+    int[] src = picture.raster();
+    int stride = picture.getWidth();
+    PixelKernels kernels = PixelKernels.preferred();
+    TileExecutor.shared().forEachTile(width, height, (x0, y0, x1, y1) -> {
+      for (int y = y0; y < y1; y++) {
+        kernels.accumulate(src, y * stride + x0, red, green, blue, y * width + x0,
+                y * width + x1);
+      }
+    });
+    count++;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the per-channel average of every picture added so far, truncated to an integer.
+   *
+   * @throws IllegalStateException if no picture has been added.
+   */
+  public Picture result() {
+    if (count == 0) {
+      throw new IllegalStateException("Nothing to blend");
+    }
+    Picture blended = new Picture(width, height);
+    int[] dst = blended.writableRaster();
+    PixelKernels kernels = PixelKernels.preferred();
+    TileExecutor.shared().forEachRange(width * height, 1 << 16,
+            (from, y0, to, y1) -> kernels.average(red, green, blue, count, dst, from, to));
+    return blended;
+  }
+}
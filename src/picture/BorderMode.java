@@ -0,0 +1,47 @@
+package picture;
+
+/**
+ * How a neighbourhood operation treats samples that fall outside the picture.
+ */
+public enum BorderMode {
+
+  /**
+   * Pixels whose neighbourhood does not fit inside the picture are copied unchanged.
+   */
+  IGNORE,
+
+  /**
+   * Samples outside the picture take the value of the nearest edge pixel.
+   */
+  CLAMP,
+
+  /**
+   * Samples outside the picture are reflected about the edge pixel, which is not repeated: one
+   * pixel past an edge reads the pixel one inside it.
+   */
+  MIRROR,
+
+  /**
+   * Samples outside the picture wrap around to the opposite edge.
+   */
+  WRAP;
+
+  /**
+   * Maps a possibly out-of-range coordinate onto [0, size). IGNORE clamps, since the pixels it
+   * would affect are copied rather than computed.
+   */
+  int index(int coordinate, int size) {
+    if (coordinate >= 0 && coordinate < size) {
+      return coordinate;
+    }
+    if (this == WRAP) {
+      return Math.floorMod(coordinate, size);
+    }
+    if (this == MIRROR && size > 1) {
+      int period = 2 * (size - 1);
+      int folded = Math.floorMod(coordinate, period);
+      return folded < size ? folded : period - folded;
+    }
+    return coordinate < 0 ? 0 : size - 1;
+  }
+}
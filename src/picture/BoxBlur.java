@@ -0,0 +1,101 @@
+package picture;
+
+/**
+ * Mean filter over a (2 * radius + 1) square window, computed with running sums so that the cost
+ * per pixel does not depend on the radius. Each band of rows keeps one running sum per column
+ * down the window and slides a second running sum along the row over those column sums. The
+ * window totals are exact, so the result matches a direct average with truncating division.
+ */
+final class BoxBlur {
+
+  private BoxBlur() { }
+
+  static Picture apply(Picture source, int radius, BorderMode mode) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("Blur radius must not be negative: " + radius);
+    }
+    int width = source.getWidth();
+    int height = source.getHeight();
+    Picture output = new Picture(width, height);
+    int[] src = source.raster();
+    int[] dst = output.writableRaster();
+    // Bands at least as tall as the window keep the cost of priming the column sums per pixel
+    // bounded.
+    int bandHeight = Math.max(TileExecutor.DEFAULT_TILE_HEIGHT, 2 * radius + 1);
+    TileExecutor.shared().forEachRowBand(width, height, bandHeight,
+            (x0, y0, x1, y1) -> blurBand(src, dst, width, height, radius, mode, y0, y1));
+    return output;
+  }
+
+  private static void blurBand(int[] src, int[] dst, int width, int height, int radius,
+                               BorderMode mode, int y0, int y1) {
+    int first = y0;
+    int last = y1;
+    int xStart = 0;
+    int xEnd = width;
+    if (mode == BorderMode.IGNORE) {
+      boolean computed = width > 2 * radius && height > 2 * radius;
+      first = computed ? Math.max(y0, radius) : y1;
+      last = computed ? Math.min(y1, height - radius) : y1;
+      for (int y = y0; y < y1; y++) {
+        if (y < first || y >= last) {
+          System.arraycopy(src, y * width, dst, y * width, width);
+        } else {
+          System.arraycopy(src, y * width, dst, y * width, radius);
+          System.arraycopy(src, (y + 1) * width - radius, dst, (y + 1) * width - radius, radius);
+        }
+      }
+      if (first >= last) {
+        return;
+      }
+      xStart = radius;
+      xEnd = width - radius;
+    }
+
+    long area = (long) (2 * radius + 1) * (2 * radius + 1);
+    int[] columnRed = new int[width];
+    int[] columnGreen = new int[width];
+    int[] columnBlue = new int[width];
+    for (int v = first - radius; v <= first + radius; v++) {
+      addRow(src, mode.index(v, height) * width, columnRed, columnGreen, columnBlue, 1);
+    }
+
+    for (int y = first; y < last; y++) {
+      long sumRed = 0;
+      long sumGreen = 0;
+      long sumBlue = 0;
+      for (int i = xStart - radius; i <= xStart + radius; i++) {
+        int x = mode.index(i, width);
+        sumRed += columnRed[x];
+        sumGreen += columnGreen[x];
+        sumBlue += columnBlue[x];
+      }
+      int row = y * width;
+      for (int x = xStart; x < xEnd; x++) {
+        dst[row + x] = Picture.pack((int) (sumRed / area), (int) (sumGreen / area),
+                (int) (sumBlue / area));
+        int in = mode.index(x + radius + 1, width);
+        int out = mode.index(x - radius, width);
+        sumRed += columnRed[in] - columnRed[out];
+        sumGreen += columnGreen[in] - columnGreen[out];
+        sumBlue += columnBlue[in] - columnBlue[out];
+      }
+      if (y + 1 < last) {
+        addRow(src, mode.index(y + radius + 1, height) * width,
+                columnRed, columnGreen, columnBlue, 1);
+        addRow(src, mode.index(y - radius, height) * width,
+                columnRed, columnGreen, columnBlue, -1);
+      }
+    }
+  }
+
+  private static void addRow(int[] src, int offset, int[] red, int[] green, int[] blue,
+                             int sign) {
+    for (int x = 0; x < red.length; x++) {
+      int rgb = src[offset + x];
+      red[x] += sign * Picture.red(rgb);
+      green[x] += sign * Picture.green(rgb);
+      blue[x] += sign * Picture.blue(rgb);
+    }
+  }
+}
@@ -1,19 +1,14 @@
 package picture;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import javax.imageio.ImageIO;
-
 public class Cluster {
   int name;
-  int countOfPixels;
+  long countOfPixels;
   int redColor;
   int greenColor;
   int blueColor;
-  int redColors;
-  int greenColors;
-  int blueColors;
+  long redColors;
+  long greenColors;
+  long blueColors;
 
   public Cluster(int name, int rgb) {
     int green = rgb >> 8 & 0x000000FF;
@@ -23,7 +18,6 @@ public class Cluster {
     greenColor = green;
     blueColor = blue;
     this.name = name;
-    additionOfPixel(rgb);
   }
 
   int getName() {
@@ -31,55 +25,76 @@ public class Cluster {
   }
 
   int getRGB() {
-    int red = redColors / countOfPixels;
-    int blue = blueColors / countOfPixels;
-    int green = greenColors / countOfPixels;
-    return 0xff000000 | red << 16 | green << 8 | blue;
+    return 0xff000000 | redColor << 16 | greenColor << 8 | blueColor;
   }
 
+  /**
+   * Forgets the pixels gathered since the last update, keeping the current centre.
+   */
   public void reset() {
-    redColor = 0;
-    blueColor = 0;
-    greenColor = 0;
     redColors = 0;
     blueColors = 0;
     greenColors = 0;
     countOfPixels = 0;
   }
 
-  void deletionOfPixel(int rgb) {
-    int green = rgb >> 8 & 0x000000FF;
-    int blue = rgb >> 0 & 0x000000FF;
-    int red = rgb >> 16 & 0x000000FF;
-    redColors -= red;
-    greenColors -= green;
-    blueColors -= blue;
-    countOfPixels--;
-    redColor = redColors / countOfPixels;
-    blueColor = blueColors / countOfPixels;
-    greenColor = greenColors / countOfPixels;
-  }
-
-  void additionOfPixel(int colour) {
+  /**
+   * Gathers weight pixels of the given colour. The centre only moves on the next update().
+   */
+  void additionOfPixels(int colour, int weight) {
     int red = colour >> 16 & 0x000000FF;
     int green = colour >> 8 & 0x000000FF;
     int blue = colour >> 0 & 0x000000FF;
+    redColors += (long) red * weight;
+    greenColors += (long) green * weight;
+    blueColors += (long) blue * weight;
+    countOfPixels += weight;
+  }
+
+  /**
+   * Gathers a batch of pixels given by their count and per-channel totals.
+   */
+  void additionOfSums(long count, long red, long green, long blue) {
     redColors += red;
     greenColors += green;
     blueColors += blue;
-    countOfPixels++;
-    redColor = redColors / countOfPixels;
-    greenColor = greenColors / countOfPixels;
-    blueColor = blueColors / countOfPixels;
+    countOfPixels += count;
+  }
+
+  /**
+   * Moves the centre to the mean of the gathered pixels and returns how far it moved, as the sum
+   * of the per-channel differences. A cluster that gathered nothing keeps its centre.
+   */
+  int update() {
+    if (countOfPixels == 0) {
+      return 0;
+    }
+    int red = (int) (redColors / countOfPixels);
+    int green = (int) (greenColors / countOfPixels);
+    int blue = (int) (blueColors / countOfPixels);
+    int movement = Math.abs(redColor - red) + Math.abs(greenColor - green)
+            + Math.abs(blueColor - blue);
+    redColor = red;
+    greenColor = green;
+    blueColor = blue;
+    return movement;
   }
 
   int separation(int colour) {
+    return distance(colour) / 3;
+  }
+
+  /**
+   * Returns the sum of the per-channel differences between the centre and the colour. Unlike
+   * separation, this is a metric, so it obeys the triangle inequality.
+   */
+  int distance(int colour) {
     int red = colour >> 16 & 0x000000FF;
     int green = colour >> 8 & 0x000000FF;
     int blue = colour >> 0 & 0x000000FF;
     int redx = Math.abs(redColor - red);
     int bluex = Math.abs(blueColor - blue);
     int greenx = Math.abs(greenColor - green);
-    return (redx + bluex + greenx) / 3;
+    return redx + bluex + greenx;
   }
 }
@@ -0,0 +1,136 @@
+package picture;
+
+import java.util.Arrays;
+
+/**
+ * Counts the distinct 0xRRGGBB colours of a picture. Colours are numbered in order of first
+ * appearance, and indexOf maps a colour back to its number with a single hash probe sequence,
+ * so per-colour results can be spread over the pixels in one pass.
+ */
+final class ColourHistogram {
+
+  private static final int EMPTY = -1;
+  private static final int CHUNK_SIZE = 1 << 18;
+
+  private int[] keys;
+  private int[] slots;
+  private int[] colours;
+  private int[] counts;
+  private int size;
+
+  private ColourHistogram(int expected) {
+    int capacity = Integer.highestOneBit(Math.max(16, expected) * 2 - 1) << 1;
+    keys = new int[capacity];
+    slots = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    colours = new int[Math.max(16, expected)];
+    counts = new int[colours.length];
+  }
+
+  /**
+   * Builds the histogram of the given pixels. Any alpha bits are ignored.
+   */
+  static ColourHistogram of(int[] pixels) {
+    return of(pixels, TileExecutor.shared());
+  }
+
+  /**
+   * Builds the histogram of the given pixels, counting chunks of them in parallel. Chunks are
+   * merged in order, so colours are numbered exactly as a sequential count would number them.
+   */
+  static ColourHistogram of(int[] pixels, TileExecutor executor) {
+    int chunks = (pixels.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    ColourHistogram[] parts = new ColourHistogram[Math.max(1, chunks)];
+    executor.forEachRange(pixels.length, CHUNK_SIZE, (from, y0, to, y1) -> {
+      ColourHistogram part = new ColourHistogram(Math.min(to - from, 1 << 16));
+      for (int i = from; i < to; i++) {
+        part.add(pixels[i] & 0xffffff, 1);
+      }
+      parts[from / CHUNK_SIZE] = part;
+    });
+    ColourHistogram histogram = parts[0] == null ? new ColourHistogram(0) : parts[0];
+    for (int chunk = 1; chunk < chunks; chunk++) {
+      ColourHistogram part = parts[chunk];
+      for (int i = 0; i < part.size; i++) {
+        histogram.add(part.colours[i], part.counts[i]);
+      }
+    }
+    return histogram;
+  }
+
+  void add(int rgb, int count) {
+    int mask = keys.length - 1;
+    int slot = hash(rgb) & mask;
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == rgb) {
+        counts[slots[slot]] += count;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (size == colours.length) {
+      colours = Arrays.copyOf(colours, size * 2);
+      counts = Arrays.copyOf(counts, size * 2);
+    }
+    keys[slot] = rgb;
+    slots[slot] = size;
+    colours[size] = rgb;
+    counts[size] = count;
+    size++;
+    if (size * 2 > keys.length) {
+      grow();
+    }
+  }
+
+  /**
+   * Returns the number of the given colour, or -1 if it does not occur.
+   */
+  int indexOf(int rgb) {
+    rgb &= 0xffffff;
+    int mask = keys.length - 1;
+    int slot = hash(rgb) & mask;
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == rgb) {
+        return slots[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int colour(int index) {
+    return colours[index];
+  }
+
+  int count(int index) {
+    return counts[index];
+  }
+
+  private void grow() {
+    int[] oldKeys = keys;
+    int[] oldSlots = slots;
+    keys = new int[oldKeys.length * 2];
+    slots = new int[oldKeys.length * 2];
+    Arrays.fill(keys, EMPTY);
+    int mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = hash(oldKeys[i]) & mask;
+        while (keys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        slots[slot] = oldSlots[i];
+      }
+    }
+  }
+
+  private static int hash(int rgb) {
+    int h = rgb * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+}
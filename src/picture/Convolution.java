@@ -0,0 +1,338 @@
+package picture;
+
+import java.util.Arrays;
+
+/**
+ * Applies a Kernel to a picture in bands of rows spread across the shared TileExecutor. Each
+ * band first unpacks its rows, and the halo above and below them, into one plane per channel,
+ * padded at the sides as the border mode gives, so that every weight is applied to a whole row
+ * at once by PixelKernels.multiplyAdd. Integer kernels work on int planes and float kernels on
+ * float ones.
+ *
+ * <p>A separable kernel is applied as a pass along the rows into per-channel sums for the band
+ * and its halo, followed by a pass down the columns of those sums, so a w x h kernel costs
+ * w + h multiply-adds per channel rather than w * h. Integer kernels keep exact integer sums in
+ * both passes, so their results are identical to the direct ones. Weights of zero are skipped.
+ *
+ * <p>Samples outside the picture are read as the border mode gives. With IGNORE, pixels whose
+ * window does not fit inside the picture are copied unchanged, as blur does.
+ */
+final class Convolution {
+  // Bands at least this tall keep the halo rows re-read by each band a small share of the work.
+  private static final int BAND_HEIGHT = 64;
+
+  private Convolution() { }
+
+  /**
+   * Receives the normalised, unclamped channel values of columns [x0, x1) of output row y, held
+   * at those indices of the arrays, which are reused for the next row.
+   */
+  interface Sink {
+    void accept(int y, int x0, int x1, int[] red, int[] green, int[] blue);
+  }
+
+  static Picture apply(Picture source, Kernel kernel, BorderMode mode) {
+    return apply(source, kernel, mode, true);
+  }
+
+  /**
+   * Applies the kernel, as two passes if it is separable and that is allowed.
+   */
+  static Picture apply(Picture source, Kernel kernel, BorderMode mode, boolean separate) {
+    Picture output = copyForBorder(source, mode);
+    int[] dst = output.writableRaster();
+    int width = source.getWidth();
+    run(source, kernel, mode, separate, (y, x0, x1, red, green, blue) -> {
+      for (int x = x0, i = y * width + x0; x < x1; x++, i++) {
+        dst[i] = Picture.pack(clamp(red[x]), clamp(green[x]), clamp(blue[x]));
+      }
+    });
+    return output;
+  }
+
+  /**
+   * Returns the magnitude of the Sobel gradient of each channel, sqrt(gx^2 + gy^2), clamped.
+   */
+  static Picture edges(Picture source, BorderMode mode) {
+    int width = source.getWidth();
+    int length = width * source.getHeight();
+    int[] gradientRed = new int[length];
+    int[] gradientGreen = new int[length];
+    int[] gradientBlue = new int[length];
+    run(source, Kernel.sobelX(), mode, true, (y, x0, x1, red, green, blue) -> {
+      System.arraycopy(red, x0, gradientRed, y * width + x0, x1 - x0);
+      System.arraycopy(green, x0, gradientGreen, y * width + x0, x1 - x0);
+      System.arraycopy(blue, x0, gradientBlue, y * width + x0, x1 - x0);
+    });
+    Picture output = copyForBorder(source, mode);
+    int[] dst = output.writableRaster();
+    run(source, Kernel.sobelY(), mode, true, (y, x0, x1, red, green, blue) -> {
+      for (int x = x0, i = y * width + x0; x < x1; x++, i++) {
+        dst[i] = Picture.pack(magnitude(gradientRed[i], red[x]),
+                magnitude(gradientGreen[i], green[x]), magnitude(gradientBlue[i], blue[x]));
+      }
+    });
+    return output;
+  }
+
+  private static int magnitude(int x, int y) {
+    return clamp((int) Math.round(Math.sqrt((double) x * x + (double) y * y)));
+  }
+
+  static int clamp(int value) {
+    return value < 0 ? 0 : Math.min(value, 255);
+  }
+
+  /**
+   * Returns the picture the results are written into: a copy of the source for IGNORE, whose
+   * uncomputed border keeps its pixels, and a blank picture otherwise.
+   */
+  private static Picture copyForBorder(Picture source, BorderMode mode) {
+    Picture output = new Picture(source.getWidth(), source.getHeight());
+    if (mode == BorderMode.IGNORE) {
+      int[] src = source.raster();
+      System.arraycopy(src, 0, output.writableRaster(), 0, source.getWidth() * source.getHeight());
+    }
+    return output;
+  }
+
+  /**
+   * Passes every computed pixel's values to the sink: all of them, or for IGNORE only those
+   * whose window fits inside the picture.
+   */
+  static void run(Picture source, Kernel kernel, BorderMode mode, boolean separate, Sink sink) {
+    int width = source.getWidth();
+    int height = source.getHeight();
+    int radiusX = kernel.getWidth() / 2;
+    int radiusY = kernel.getHeight() / 2;
+    int xStart = 0;
+    int xEnd = width;
+    int yStart = 0;
+    int yEnd = height;
+    if (mode == BorderMode.IGNORE) {
+      if (width <= 2 * radiusX || height <= 2 * radiusY) {
+        return;
+      }
+      xStart = radiusX;
+      xEnd = width - radiusX;
+      yStart = radiusY;
+      yEnd = height - radiusY;
+    }
+    // Column i of a padded plane holds source column columns[i], so output column x reads
+    // columns x to x + 2 * radiusX.
+    int[] columns = new int[width + 2 * radiusX];
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = mode.index(i - radiusX, width);
+    }
+    Band band = new Band(source.raster(), width, height, kernel, mode, columns, xStart, xEnd,
+            sink);
+    boolean twoPass = separate && kernel.isSeparable() && worthSeparating(kernel);
+    int first = yStart;
+    TileExecutor.shared().forEachRowBand(width, yEnd - yStart,
+            Math.max(BAND_HEIGHT, 2 * radiusY + 1),
+            (x0, y0, x1, y1) -> band.compute(first + y0, first + y1, twoPass));
+  }
+
+  /**
+   * Returns whether the two passes need fewer multiply-adds than the direct one.
+   */
+  private static boolean worthSeparating(Kernel kernel) {
+    int direct;
+    int separate;
+    if (kernel.isInteger()) {
+      direct = nonZero(kernel.intWeights());
+      separate = nonZero(kernel.intColumn()) + nonZero(kernel.intRow());
+    } else {
+      direct = nonZero(kernel.floatWeights());
+      separate = nonZero(kernel.floatColumn()) + nonZero(kernel.floatRow());
+    }
+    return separate < direct;
+  }
+
+  private static int nonZero(int[] weights) {
+    int count = 0;
+    for (int weight : weights) {
+      count += weight != 0 ? 1 : 0;
+    }
+    return count;
+  }
+
+  private static int nonZero(float[] weights) {
+    int count = 0;
+    for (float weight : weights) {
+      count += weight != 0 ? 1 : 0;
+    }
+    return count;
+  }
+
+  /**
+   * The state shared by every band of one convolution.
+   */
+  private static final class Band {
+    private final PixelKernels kernels = PixelKernels.preferred();
+    private final int[] src;
+    private final int width;
+    private final int height;
+    private final Kernel kernel;
+    private final BorderMode mode;
+    private final int[] columns;
+    private final int xStart;
+    private final int xEnd;
+    private final Sink sink;
+    private final int radiusY;
+
+    Band(int[] src, int width, int height, Kernel kernel, BorderMode mode, int[] columns,
+         int xStart, int xEnd, Sink sink) {
+      this.src = src;
+      this.width = width;
+      this.height = height;
+      this.kernel = kernel;
+      this.mode = mode;
+      this.columns = columns;
+      this.xStart = xStart;
+      this.xEnd = xEnd;
+      this.sink = sink;
+      this.radiusY = kernel.getHeight() / 2;
+    }
+
+    /**
+     * Computes output rows [y0, y1), in two passes if twoPass is set.
+     */
+    void compute(int y0, int y1, boolean twoPass) {
+      int rows = y1 - y0 + 2 * radiusY;
+      if (kernel.isInteger()) {
+        int[][] planes = new int[3][rows * columns.length];
+        unpack(y0, rows, planes, null);
+        if (twoPass) {
+          planes = filterRows(planes, kernel.intRow(), rows);
+          filterColumns(y0, y1, planes, kernel.intColumn(), 1, width);
+        } else {
+          filterColumns(y0, y1, planes, kernel.intWeights(), kernel.getWidth(), columns.length);
+        }
+      } else {
+        float[][] planes = new float[3][rows * columns.length];
+        unpack(y0, rows, null, planes);
+        if (twoPass) {
+          planes = filterRows(planes, kernel.floatRow(), rows);
+          filterColumns(y0, y1, planes, kernel.floatColumn(), 1, width);
+        } else {
+          filterColumns(y0, y1, planes, kernel.floatWeights(), kernel.getWidth(),
+                  columns.length);
+        }
+      }
+    }
+
+    /**
+     * Splits the band's rows and halo into channel planes of ints or floats, whichever is given,
+     * padded at the sides as the border mode gives.
+     */
+    private void unpack(int y0, int rows, int[][] ints, float[][] floats) {
+      int stride = columns.length;
+      for (int r = 0; r < rows; r++) {
+        int from = mode.index(y0 - radiusY + r, height) * width;
+        for (int i = 0, to = r * stride; i < stride; i++, to++) {
+          int rgb = src[from + columns[i]];
+          if (ints != null) {
+            ints[0][to] = (rgb >> 16) & 0xff;
+            ints[1][to] = (rgb >> 8) & 0xff;
+            ints[2][to] = rgb & 0xff;
+          } else {
+            floats[0][to] = (rgb >> 16) & 0xff;
+            floats[1][to] = (rgb >> 8) & 0xff;
+            floats[2][to] = rgb & 0xff;
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the padded planes filtered along each row by the kernel's row factor, as planes
+     * width wide.
+     */
+    private int[][] filterRows(int[][] planes, int[] row, int rows) {
+      int[][] filtered = new int[3][rows * width];
+      for (int r = 0; r < rows; r++) {
+        int to = r * width;
+        for (int dx = 0; dx < row.length; dx++) {
+          if (row[dx] != 0) {
+            for (int c = 0; c < 3; c++) {
+              kernels.multiplyAdd(filtered[c], planes[c], r * columns.length + dx - to, row[dx],
+                      to + xStart, to + xEnd);
+            }
+          }
+        }
+      }
+      return filtered;
+    }
+
+    private float[][] filterRows(float[][] planes, float[] row, int rows) {
+      float[][] filtered = new float[3][rows * width];
+      for (int r = 0; r < rows; r++) {
+        int to = r * width;
+        for (int dx = 0; dx < row.length; dx++) {
+          if (row[dx] != 0) {
+            for (int c = 0; c < 3; c++) {
+              kernels.multiplyAdd(filtered[c], planes[c], r * columns.length + dx - to, row[dx],
+                      to + xStart, to + xEnd);
+            }
+          }
+        }
+      }
+      return filtered;
+    }
+
+    /**
+     * Sums the weights, a grid kernelWidth wide, times the planes, stride wide, for each output
+     * row, and passes the normalised sums to the sink. The second pass of a separable kernel is
+     * the case of a one-column grid.
+     */
+    private void filterColumns(int y0, int y1, int[][] planes, int[] weights, int kernelWidth,
+                               int stride) {
+      int[][] sums = new int[3][width];
+      for (int y = y0; y < y1; y++) {
+        for (int[] sum : sums) {
+          Arrays.fill(sum, 0);
+        }
+        for (int t = 0; t < weights.length; t++) {
+          if (weights[t] != 0) {
+            int offset = (y - y0 + t / kernelWidth) * stride + t % kernelWidth;
+            for (int c = 0; c < 3; c++) {
+              kernels.multiplyAdd(sums[c], planes[c], offset, weights[t], xStart, xEnd);
+            }
+          }
+        }
+        for (int[] sum : sums) {
+          for (int x = xStart; x < xEnd; x++) {
+            sum[x] = kernel.normalise(sum[x]);
+          }
+        }
+        sink.accept(y, xStart, xEnd, sums[0], sums[1], sums[2]);
+      }
+    }
+
+    private void filterColumns(int y0, int y1, float[][] planes, float[] weights,
+                               int kernelWidth, int stride) {
+      float[][] sums = new float[3][width];
+      int[][] normalised = new int[3][width];
+      for (int y = y0; y < y1; y++) {
+        for (float[] sum : sums) {
+          Arrays.fill(sum, 0);
+        }
+        for (int t = 0; t < weights.length; t++) {
+          if (weights[t] != 0) {
+            int offset = (y - y0 + t / kernelWidth) * stride + t % kernelWidth;
+            for (int c = 0; c < 3; c++) {
+              kernels.multiplyAdd(sums[c], planes[c], offset, weights[t], xStart, xEnd);
+            }
+          }
+        }
+        for (int c = 0; c < 3; c++) {
+          for (int x = xStart; x < xEnd; x++) {
+            normalised[c][x] = kernel.normalise(sums[c][x]);
+          }
+        }
+        sink.accept(y, xStart, xEnd, normalised[0], normalised[1], normalised[2]);
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package picture;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Sends PictureProcessor requests to a running ProcessingDaemon. Run as
+ * "DaemonClient address arguments...", it stands in for "PictureProcessor arguments...": it
+ * waits for the daemon to finish the request, prints what the command printed on stdout and
+ * stderr, and exits with status 1 if the request failed.
+ * Arguments naming existing files or directories, and the final output argument, are made
+ * absolute first, so the client may run from any directory.
+ */
+public class DaemonClient implements Closeable {
+
+  /**
+   * The daemon's answer to one request.
+   */
+  public static final class Response {
+    public final boolean ok;
+    public final long nanos;
+    public final String message;
+    // What the command printed on stdout and on stderr, such as the "--stats" line.
+    public final String output;
+    public final String errors;
+
+    Response(boolean ok, long nanos, String message, String output, String errors) {
+      this.ok = ok;
+      this.nanos = nanos;
+      this.message = message;
+      this.output = output;
+      this.errors = errors;
+    }
+  }
+
+  private final SocketChannel channel;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  /**
+   * Connects to the daemon at the given address: a loopback port number or a Unix-domain socket
+   * path. The connection is kept open for any number of requests.
+   */
+  public DaemonClient(String address) throws IOException {
+    channel = ProcessingDaemon.connect(address);
+    in = new DataInputStream(Channels.newInputStream(channel));
+    out = new DataOutputStream(Channels.newOutputStream(channel));
+  }
+
+  /**
+   * Runs one request, given as PictureProcessor arguments, and returns the daemon's answer.
+   */
+  public Response run(String... args) throws IOException {
+    out.writeInt(args.length);
+    for (String arg : args) {
+      out.writeUTF(arg);
+    }
+    out.flush();
+    return new Response(in.readBoolean(), in.readLong(), in.readUTF(), readText(), readText());
+  }
+
+  private String readText() throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  public static void main(String[] args) throws IOException {
+    String[] request = Arrays.copyOfRange(args, 1, args.length);
+    for (int i = 0; i < request.length; i++) {
+      File file = new File(request[i]);
+      if (file.exists() || (i == request.length - 1 && request.length > 1)) {
+        request[i] = file.getAbsolutePath();
+      }
+    }
+    Response response;
+    try (DaemonClient client = new DaemonClient(args[0])) {
+      response = client.run(request);
+    }
+    System.out.print(response.output);
+    System.err.print(response.errors);
+    if (!response.ok) {
+      System.err.println(response.message);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package picture;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Helpers for inspecting image files without decoding their pixels. Raw raster files are read
+ * through their own header rather than ImageIO.
+ */
+final class ImageFiles {
+
+  private ImageFiles() { }
+
+  /**
+   * Returns the width and height of the first image in the file, read from its header only.
+   */
+  static Dimension dimensions(String filepath) {
+    if (RawRaster.isRaw(filepath)) {
+      try (RawRaster raster = RawRaster.open(Paths.get(filepath), false)) {
+        return new Dimension(raster.getWidth(), raster.getHeight());
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    try (ImageInputStream input = ImageIO.createImageInputStream(new File(filepath))) {
+      ImageReader reader = reader(input, filepath);
+      try {
+        reader.setInput(input, true, true);
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+      } finally {
+        reader.dispose();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static ImageReader reader(ImageInputStream input, String filepath) throws IOException {
+    if (input == null) {
+      throw new IOException("Can't read input file '" + filepath + "'");
+    }
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+    if (!readers.hasNext()) {
+      throw new IOException("No image reader for '" + filepath + "'");
+    }
+    return readers.next();
+  }
+}
@@ -0,0 +1,272 @@
+package picture;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the stages of a run (decode, transform, encode) and the iterations of k-means. Each
+ * measurement is committed as a JFR event, StageEvent or KmeansIterationEvent, when a recording
+ * has that event enabled, and added to the thread's Stats when a run is collecting them for
+ * --stats. Stats are bound to the thread that collects them and are not inherited: work the run
+ * hands to other threads, such as the batch stages, reports to them only when it is wrapped with
+ * bound, so long-lived pool threads never keep recording into an earlier run.
+ *
+ * <p>With neither enabled, starting a stage costs one small allocation and two checks, and
+ * nothing is timed, so the calls can stay in production code.
+ */
+final class Instrumentation {
+  private static final ThreadLocal<Stats> STATS = new ThreadLocal<>();
+  private static final Stage DISABLED_STAGE = new Stage(null, null, null);
+  private static final Iteration DISABLED_ITERATION = new Iteration(null, null);
+
+  private Instrumentation() { }
+
+  /**
+   * Starts collecting the measurements of this thread into a new Stats for the given command.
+   */
+  static Stats collect(String command) {
+    Stats stats = new Stats(command);
+    STATS.set(stats);
+    return stats;
+  }
+
+  /**
+   * Stops collecting into this thread's Stats. Tasks bound to it that are still running stop
+   * adding to it as well.
+   */
+  static void stopCollecting() {
+    Stats stats = STATS.get();
+    if (stats != null) {
+      stats.stop();
+    }
+    STATS.remove();
+  }
+
+  /**
+   * Returns a task that runs the given one with this thread's current Stats, if any, bound on
+   * whichever thread runs it, and unbinds them afterwards.
+   */
+  static Runnable bound(Runnable task) {
+    Stats stats = STATS.get();
+    if (stats == null) {
+      return task;
+    }
+    return () -> {
+      Stats previous = STATS.get();
+      STATS.set(stats);
+      try {
+        task.run();
+      } finally {
+        if (previous == null) {
+          STATS.remove();
+        } else {
+          STATS.set(previous);
+        }
+      }
+    };
+  }
+
+  /**
+   * Starts timing a stage; close it when the stage ends.
+   */
+  static Stage stage(String name) {
+    StageEvent event = new StageEvent();
+    Stats stats = STATS.get();
+    if (!event.isEnabled() && stats == null) {
+      return DISABLED_STAGE;
+    }
+    event.stage = name;
+    return new Stage(event, stats, name);
+  }
+
+  /**
+   * Starts timing a k-means iteration; close it when the iteration ends.
+   */
+  static Iteration kmeansIteration(int iteration, int clusters, boolean miniBatch) {
+    KmeansIterationEvent event = new KmeansIterationEvent();
+    Stats stats = STATS.get();
+    if (!event.isEnabled() && stats == null) {
+      return DISABLED_ITERATION;
+    }
+    event.iteration = iteration;
+    event.clusters = clusters;
+    event.miniBatch = miniBatch;
+    return new Iteration(event, stats);
+  }
+
+  /**
+   * Returns the bytes allocated so far by all live threads, or 0 if the JVM does not count them.
+   * Threads that end during a stage take their allocations with them.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    com.sun.management.ThreadMXBean counted = (com.sun.management.ThreadMXBean) threads;
+    if (!counted.isThreadAllocatedMemoryEnabled()) {
+      return 0;
+    }
+    long total = 0;
+    for (long bytes : counted.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      total += Math.max(0, bytes);
+    }
+    return total;
+  }
+
+  /**
+   * A stage being timed. Pixels and bytes processed may be added at any point before it closes.
+   */
+  static final class Stage implements AutoCloseable {
+    private final StageEvent event;
+    private final Stats stats;
+    private final String name;
+    private final long start;
+    private final long allocatedAtStart;
+    private long pixels;
+    private long bytes;
+
+    private Stage(StageEvent event, Stats stats, String name) {
+      this.event = event;
+      this.stats = stats;
+      this.name = name;
+      if (event == null) {
+        start = 0;
+        allocatedAtStart = 0;
+        return;
+      }
+      allocatedAtStart = allocatedBytes();
+      start = System.nanoTime();
+      event.begin();
+    }
+
+    Stage pixels(long count) {
+      if (event != null) {
+        pixels += count;
+      }
+      return this;
+    }
+
+    /**
+     * Adds the size of the file to the bytes processed, looking it up only if the stage is being
+     * measured.
+     */
+    Stage bytes(String filepath) {
+      if (event != null) {
+        bytes += new File(filepath).length();
+      }
+      return this;
+    }
+
+    @Override
+    public void close() {
+      if (event == null) {
+        return;
+      }
+      event.end();
+      long nanos = System.nanoTime() - start;
+      long allocated = allocatedBytes() - allocatedAtStart;
+      if (event.shouldCommit()) {
+        event.pixels = pixels;
+        event.bytes = bytes;
+        event.allocatedBytes = allocated;
+        event.commit();
+      }
+      if (stats != null) {
+        stats.addStage(name, nanos, pixels, bytes, allocated);
+      }
+    }
+  }
+
+  /**
+   * A k-means iteration being timed.
+   */
+  static final class Iteration implements AutoCloseable {
+    private final KmeansIterationEvent event;
+    private final Stats stats;
+    private final long start;
+
+    private Iteration(KmeansIterationEvent event, Stats stats) {
+      this.event = event;
+      this.stats = stats;
+      start = event == null ? 0 : System.nanoTime();
+      if (event != null) {
+        event.begin();
+      }
+    }
+
+    @Override
+    public void close() {
+      if (event == null) {
+        return;
+      }
+      event.end();
+      event.commit();
+      if (stats != null) {
+        stats.addIteration(System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * The measurements of one run, printed by --stats as a single JSON line.
+   */
+  static final class Stats {
+    private final String command;
+    private final long start = System.nanoTime();
+    private final List<String> stages = new ArrayList<>();
+    private final List<Long> iterationNanos = new ArrayList<>();
+    private boolean stopped;
+
+    private Stats(String command) {
+      this.command = command;
+    }
+
+    private synchronized void stop() {
+      stopped = true;
+    }
+
+    private synchronized void addStage(String name, long nanos, long pixels, long bytes,
+                                       long allocated) {
+      if (stopped) {
+        return;
+      }
+      stages.add(String.format(Locale.ROOT,
+              "{\"stage\":\"%s\",\"millis\":%.3f,\"pixels\":%d,\"bytes\":%d,"
+                      + "\"allocatedBytes\":%d}", name, nanos / 1e6, pixels, bytes, allocated));
+    }
+
+    private synchronized void addIteration(long nanos) {
+      if (stopped) {
+        return;
+      }
+      iterationNanos.add(nanos);
+    }
+
+    /**
+     * Returns the run's command, total wall time, stages in the order they ended, and k-means
+     * iteration count and times, as one line of JSON.
+     */
+    synchronized String toJson() {
+      StringBuilder json = new StringBuilder();
+      json.append(String.format(Locale.ROOT, "{\"command\":\"%s\",\"millis\":%.3f,\"stages\":[",
+              command.replace("\\", "\\\\").replace("\"", "\\\""),
+              (System.nanoTime() - start) / 1e6));
+      json.append(String.join(",", stages)).append(']');
+      if (!iterationNanos.isEmpty()) {
+        json.append(",\"kmeans\":{\"iterations\":").append(iterationNanos.size())
+                .append(",\"iterationMillis\":[");
+        for (int i = 0; i < iterationNanos.size(); i++) {
+          json.append(i == 0 ? "" : ",")
+                  .append(String.format(Locale.ROOT, "%.3f", iterationNanos.get(i) / 1e6));
+        }
+        json.append("]}");
+      }
+      return json.append('}').toString();
+    }
+  }
+}
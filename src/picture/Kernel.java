@@ -0,0 +1,313 @@
+package picture;
+
+import java.util.Arrays;
+
+/**
+ * A convolution kernel: an odd-sized grid of integer or float weights, applied to each channel
+ * with the pixel at the centre of the grid.
+ *
+ * <p>An integer kernel computes round(total / divisor) + bias for each channel, where total is
+ * the exact integer sum of weights times samples; the division is done in fixed point with a
+ * reciprocal chosen so that it is exact over every total the kernel can produce. A float kernel
+ * computes round(total + bias). Either way the result is clamped to [0, 255].
+ *
+ * <p>Kernels whose weights are the outer product of a column and a row are found when the kernel
+ * is created, so that Convolution can apply them as two one-dimensional passes.
+ */
+public final class Kernel {
+  private final int width;
+  private final int height;
+  // Exactly one of intWeights and floatWeights is set, row-major.
+  private final int[] intWeights;
+  private final float[] floatWeights;
+  private final int divisor;
+  private final float bias;
+  // The factors of a separable kernel, of the same type as its weights, or null.
+  private final int[] intColumn;
+  private final int[] intRow;
+  private final float[] floatColumn;
+  private final float[] floatRow;
+  // round(total / divisor) == ((2 * total + divisor + offset) * reciprocal >> shift)
+  // - offsetQuotient for every reachable total when fixedPoint is set; see normalise.
+  private final long offset;
+  private final long offsetQuotient;
+  private final long reciprocal;
+  private final int shift;
+  private final boolean fixedPoint;
+
+  private Kernel(int width, int height, int[] intWeights, float[] floatWeights, int divisor,
+                 float bias) {
+    if (width <= 0 || height <= 0 || width % 2 == 0 || height % 2 == 0) {
+      throw new IllegalArgumentException("Kernel sides must be odd and positive, not " + width
+              + "x" + height);
+    }
+    int length = intWeights != null ? intWeights.length : floatWeights.length;
+    if (length != width * height) {
+      throw new IllegalArgumentException("A " + width + "x" + height + " kernel needs "
+              + width * height + " weights, not " + length);
+    }
+    if (divisor <= 0) {
+      throw new IllegalArgumentException("Kernel divisor must be positive, not " + divisor);
+    }
+    this.width = width;
+    this.height = height;
+    this.intWeights = intWeights;
+    this.floatWeights = floatWeights;
+    this.divisor = divisor;
+    this.bias = bias;
+    if (intWeights != null) {
+      int[][] factors = factor(intWeights, width, height);
+      intColumn = factors == null ? null : factors[0];
+      intRow = factors == null ? null : factors[1];
+      floatColumn = null;
+      floatRow = null;
+      long totalRange = 0;
+      for (int weight : intWeights) {
+        totalRange += 255L * Math.abs(weight);
+      }
+      if (totalRange > Integer.MAX_VALUE / 2) {
+        throw new IllegalArgumentException("Kernel weights are too large to sum exactly");
+      }
+      // The numerator 2 * total + divisor lies in [-2 * range + divisor, 2 * range + divisor];
+      // the offset, a multiple of 2 * divisor, makes it non-negative.
+      long step = 2L * divisor;
+      offsetQuotient = 2 * totalRange / step + 1;
+      offset = offsetQuotient * step;
+      long largest = 4 * totalRange + divisor + offset;
+      shift = 62 - (64 - Long.numberOfLeadingZeros(largest));
+      reciprocal = ((1L << shift) + step - 1) / step;
+      long error = reciprocal * step - (1L << shift);
+      fixedPoint = Math.multiplyHigh(largest, error) == 0 && largest * error < 1L << shift;
+    } else {
+      float[][] factors = factor(floatWeights, width, height);
+      floatColumn = factors == null ? null : factors[0];
+      floatRow = factors == null ? null : factors[1];
+      intColumn = null;
+      intRow = null;
+      offset = 0;
+      offsetQuotient = 0;
+      reciprocal = 0;
+      shift = 0;
+      fixedPoint = false;
+    }
+  }
+
+  /**
+   * Returns the integer kernel with the given row-major weights, dividing each total by the
+   * divisor and adding the bias.
+   *
+   * @throws IllegalArgumentException if a side is not odd and positive, the number of weights
+   *     does not match, or the divisor is not positive.
+   */
+  public static Kernel of(int width, int height, int[] weights, int divisor, int bias) {
+    return new Kernel(width, height, weights.clone(), null, divisor, bias);
+  }
+
+  /**
+   * Returns the float kernel with the given row-major weights, adding the bias to each total.
+   *
+   * @throws IllegalArgumentException if a side is not odd and positive or the number of weights
+   *     does not match.
+   */
+  public static Kernel of(int width, int height, float[] weights, float bias) {
+    return new Kernel(width, height, null, weights.clone(), 1, bias);
+  }
+
+  public static Kernel sharpen() {
+    return of(3, 3, new int[] {0, -1, 0, -1, 5, -1, 0, -1, 0}, 1, 0);
+  }
+
+  public static Kernel emboss() {
+    return of(3, 3, new int[] {-2, -1, 0, -1, 1, 1, 0, 1, 2}, 1, 0);
+  }
+
+  /**
+   * The horizontal Sobel gradient, positive where the picture gets lighter to the right.
+   */
+  public static Kernel sobelX() {
+    return of(3, 3, new int[] {-1, 0, 1, -2, 0, 2, -1, 0, 1}, 1, 0);
+  }
+
+  /**
+   * The vertical Sobel gradient, positive where the picture gets lighter downwards.
+   */
+  public static Kernel sobelY() {
+    return of(3, 3, new int[] {-1, -2, -1, 0, 0, 0, 1, 2, 1}, 1, 0);
+  }
+
+  /**
+   * Returns the normalised Gaussian with the given standard deviation, cut off at three
+   * deviations from the centre.
+   *
+   * @throws IllegalArgumentException if sigma is not positive.
+   */
+  public static Kernel gaussian(double sigma) {
+    if (!(sigma > 0) || Double.isInfinite(sigma)) {
+      throw new IllegalArgumentException("Gaussian sigma must be positive, not " + sigma);
+    }
+    int radius = (int) Math.ceil(3 * sigma);
+    double[] line = new double[2 * radius + 1];
+    double sum = 0;
+    for (int i = -radius; i <= radius; i++) {
+      line[i + radius] = Math.exp(-i * i / (2 * sigma * sigma));
+      sum += line[i + radius];
+    }
+    float[] weights = new float[line.length * line.length];
+    for (int y = 0; y < line.length; y++) {
+      for (int x = 0; x < line.length; x++) {
+        weights[y * line.length + x] = (float) (line[y] * line[x] / (sum * sum));
+      }
+    }
+    return of(line.length, line.length, weights, 0);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public boolean isSeparable() {
+    return intColumn != null || floatColumn != null;
+  }
+
+  boolean isInteger() {
+    return intWeights != null;
+  }
+
+  int[] intWeights() {
+    return intWeights;
+  }
+
+  float[] floatWeights() {
+    return floatWeights;
+  }
+
+  int[] intColumn() {
+    return intColumn;
+  }
+
+  int[] intRow() {
+    return intRow;
+  }
+
+  float[] floatColumn() {
+    return floatColumn;
+  }
+
+  float[] floatRow() {
+    return floatRow;
+  }
+
+  int divisor() {
+    return divisor;
+  }
+
+  float bias() {
+    return bias;
+  }
+
+  /**
+   * Returns the weight at (x, y) as a float, divided by the divisor for an integer kernel.
+   */
+  float weight(int x, int y) {
+    int i = y * width + x;
+    return intWeights != null ? (float) intWeights[i] / divisor : floatWeights[i];
+  }
+
+  /**
+   * Returns round(total / divisor) + bias for an integer kernel, rounding halves up. The
+   * numerator 2 * total + divisor + offset is non-negative and small enough that multiplying by
+   * the rounded-up reciprocal of 2 * divisor and shifting gives its exact floor quotient. Kernels
+   * with weights too large for that, which no practical kernel has, divide instead.
+   */
+  int normalise(int total) {
+    if (!fixedPoint) {
+      return (int) Math.floorDiv(2L * total + divisor, 2L * divisor) + (int) bias;
+    }
+    long quotient = ((2L * total + divisor + offset) * reciprocal) >> shift;
+    return (int) (quotient - offsetQuotient) + (int) bias;
+  }
+
+  /**
+   * Returns round(total + bias) for a float kernel.
+   */
+  int normalise(float total) {
+    return Math.round(total + bias);
+  }
+
+  /**
+   * Returns {column, row} with weights[y * width + x] == column[y] * row[x], or null if the
+   * weights are not an outer product. The row is the first non-zero row divided by the gcd of
+   * its entries, so every multiple of it in integers has an integer factor in the column.
+   */
+  private static int[][] factor(int[] weights, int width, int height) {
+    int first = 0;
+    while (first < weights.length && weights[first] == 0) {
+      first++;
+    }
+    if (first == weights.length) {
+      return null;
+    }
+    int rowStart = first / width * width;
+    int gcd = 0;
+    for (int x = 0; x < width; x++) {
+      gcd = gcd(gcd, Math.abs(weights[rowStart + x]));
+    }
+    int[] row = new int[width];
+    for (int x = 0; x < width; x++) {
+      row[x] = weights[rowStart + x] / gcd;
+    }
+    int pivot = first - rowStart;
+    int[] column = new int[height];
+    for (int y = 0; y < height; y++) {
+      int weight = weights[y * width + pivot];
+      if (weight % row[pivot] != 0) {
+        return null;
+      }
+      column[y] = weight / row[pivot];
+      for (int x = 0; x < width; x++) {
+        if (weights[y * width + x] != column[y] * row[x]) {
+          return null;
+        }
+      }
+    }
+    return new int[][] {column, row};
+  }
+
+  /**
+   * Returns {column, row} whose outer product matches the weights to within a relative 1e-6 of
+   * the largest weight, or null if there are none.
+   */
+  private static float[][] factor(float[] weights, int width, int height) {
+    int largest = 0;
+    for (int i = 1; i < weights.length; i++) {
+      if (Math.abs(weights[i]) > Math.abs(weights[largest])) {
+        largest = i;
+      }
+    }
+    float scale = Math.abs(weights[largest]);
+    if (scale == 0) {
+      return null;
+    }
+    int rowStart = largest / width * width;
+    int pivot = largest - rowStart;
+    float[] row = Arrays.copyOfRange(weights, rowStart, rowStart + width);
+    float[] column = new float[height];
+    for (int y = 0; y < height; y++) {
+      column[y] = weights[y * width + pivot] / row[pivot];
+      for (int x = 0; x < width; x++) {
+        if (Math.abs(weights[y * width + x] - column[y] * row[x]) > 1e-6f * scale) {
+          return null;
+        }
+      }
+    }
+    return new float[][] {column, row};
+  }
+
+  private static int gcd(int a, int b) {
+    return b == 0 ? a : gcd(b, a % b);
+  }
+}
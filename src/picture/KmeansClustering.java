@@ -1,53 +1,300 @@
 package picture;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import javax.imageio.ImageIO;
 
+/**
+ * Reduces an image to k colours with k-means. The clustering runs over the distinct colours of
+ * the image, each weighted by how many pixels share it, so an iteration costs one pass over the
+ * colour histogram rather than over every pixel. Iterations stop once no centre moves by more
+ * than the convergence threshold, or after the maximum number of iterations.
+ */
 public class KmeansClustering {
+  public static final int DEFAULT_MAX_ITERATIONS = 100;
+  public static final int DEFAULT_CONVERGENCE_THRESHOLD = 1;
+  private static final int CHUNK_SIZE = 1 << 14;
+
+  /**
+   * How each colour finds its nearest centre. Both engines produce the same assignments.
+   */
+  public enum Engine {
+    /**
+     * Measures the separation to every centre.
+     */
+    BRUTE_FORCE,
+
+    /**
+     * Keeps, per colour, an upper bound on the distance to its centre and a lower bound on the
+     * distance to any other centre, widened by how far the centres moved (Hamerly's algorithm).
+     * A colour whose bounds show its centre is still strictly nearest is not measured again.
+     */
+    HAMERLY
+  }
+
   Cluster[] clusters;
+  private final int maxIterations;
+  private final int convergenceThreshold;
+  private final Engine engine;
+  private final TileExecutor executor;
+  private int iterations;
+  private long[] distanceEvaluations;
+  private long[] skippedDistanceEvaluations;
+  private int[] upper;
+  private int[] lower;
+  private int[] drift;
+
+  public KmeansClustering() {
+    this(DEFAULT_MAX_ITERATIONS, DEFAULT_CONVERGENCE_THRESHOLD);
+  }
+
+  public KmeansClustering(int maxIterations, int convergenceThreshold) {
+    this(maxIterations, convergenceThreshold, Engine.HAMERLY);
+  }
 
-  public KmeansClustering() { }
+  public KmeansClustering(int maxIterations, int convergenceThreshold, Engine engine) {
+    this(maxIterations, convergenceThreshold, engine, TileExecutor.shared());
+  }
+
+  /**
+   * Creates a clustering that runs at most maxIterations iterations and stops early once no
+   * centre moves by more than convergenceThreshold, measured as the sum of the per-channel
+   * differences. Assignment passes are split across the executor's threads; the result does not
+   * depend on the number of threads.
+   */
+  public KmeansClustering(int maxIterations, int convergenceThreshold, Engine engine,
+                          TileExecutor executor) {
+    if (maxIterations < 1) {
+      throw new IllegalArgumentException("At least one iteration is required");
+    }
+    this.maxIterations = maxIterations;
+    this.convergenceThreshold = convergenceThreshold;
+    this.engine = engine;
+    this.executor = executor;
+  }
 
   public BufferedImage evaluate(BufferedImage givenImage, int kvalue) {
     int width = givenImage.getWidth();
     int height = givenImage.getHeight();
+    int[] pixels = new Picture(givenImage).raster();
+    ColourHistogram histogram = ColourHistogram.of(pixels, executor);
+    int[] labels = clusterColours(givenImage, kvalue, histogram);
 
+    int[] colourOfLabel = new int[labels.length];
+    for (int i = 0; i < labels.length; i++) {
+      colourOfLabel[i] = clusters[labels[i]].getRGB() & 0xffffff;
+    }
+
+    BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] data = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+    executor.forEachRange(pixels.length, CHUNK_SIZE, (from, y0, to, y1) -> {
+      for (int i = from; i < to; i++) {
+        data[i] = colourOfLabel[histogram.indexOf(pixels[i])];
+      }
+    });
+    return output;
+  }
+
+  /**
+   * Clusters the image exactly as evaluate does, but returns an indexed-colour image whose
+   * palette holds the distinct centres that label at least one colour, and whose pixels are
+   * palette indices packed into 1, 2, 4 or 8 bits. It decodes to the same colours as the
+   * evaluate output.
+   *
+   * @throws IllegalArgumentException if kvalue is more than 256.
+   */
+  public BufferedImage evaluateIndexed(BufferedImage givenImage, int kvalue) {
+    if (kvalue > 256) {
+      throw new IllegalArgumentException("A palette holds at most 256 colours");
+    }
+    int width = givenImage.getWidth();
+    int[] pixels = new Picture(givenImage).raster();
+    ColourHistogram histogram = ColourHistogram.of(pixels, executor);
+    int[] labels = clusterColours(givenImage, kvalue, histogram);
+
+    int[] colours = new int[clusters.length];
+    boolean[] used = new boolean[clusters.length];
+    for (int c = 0; c < clusters.length; c++) {
+      colours[c] = clusters[c].getRGB();
+    }
+    for (int label : labels) {
+      used[label] = true;
+    }
+    int[] indexOfCluster = new int[clusters.length];
+    int[] palette = PaletteImage.compact(colours, used, indexOfCluster);
+    int[] indexOfColour = new int[labels.length];
+    for (int i = 0; i < labels.length; i++) {
+      indexOfColour[i] = indexOfCluster[labels[i]];
+    }
+    return PaletteImage.create(width, givenImage.getHeight(), palette, (y, row) -> {
+      for (int x = 0; x < width; x++) {
+        row[x] = indexOfColour[histogram.indexOf(pixels[y * width + x])];
+      }
+    }, executor);
+  }
+
+  /**
+   * Runs the clustering over the histogram's colours and returns the label of each colour.
+   */
+  private int[] clusterColours(BufferedImage givenImage, int kvalue, ColourHistogram histogram) {
     clusters = generateClusters(kvalue, givenImage);
+    int[] labels = new int[histogram.size()];
+    distanceEvaluations = new long[maxIterations + 1];
+    skippedDistanceEvaluations = new long[maxIterations + 1];
+    drift = null;
 
-    int[] lt = new int[width * height];
-    Arrays.fill(lt, -1);
-
-    boolean changedClusterPixel = true;
-
-    while (changedClusterPixel) {
-      changedClusterPixel = false;
-      for (int y = 0; y < height; y++) {
-        for (int x = 0; x < width; x++) {
-          int rgb = givenImage.getRGB(x, y);
-          Cluster cluster = minimalCluster(rgb);
-          if (lt[(width * y) + x] != cluster.getName()) {
-            if (lt[(width * y) + x] != -1) {
-              clusters[lt[(width * y) + x]].deletionOfPixel(rgb);
-            }
-            cluster.additionOfPixel(rgb);
-            changedClusterPixel = true;
-            lt[(width * y) + x] = cluster.getName();
-          }
+    iterations = 0;
+    long[] sums = assign(histogram, labels, 0);
+    int movement = Integer.MAX_VALUE;
+    while (iterations < maxIterations && movement > convergenceThreshold) {
+      Instrumentation.Iteration timed =
+              Instrumentation.kmeansIteration(iterations + 1, clusters.length, false);
+      try {
+        movement = 0;
+        drift = new int[clusters.length];
+        for (int c = 0; c < clusters.length; c++) {
+          clusters[c].reset();
+          clusters[c].additionOfSums(sums[4 * c], sums[4 * c + 1], sums[4 * c + 2],
+                  sums[4 * c + 3]);
+          drift[c] = clusters[c].update();
+          movement = Math.max(movement, drift[c]);
         }
+        iterations++;
+        // Centres have moved, so every pass, including the last, labels against the new centres.
+        sums = assign(histogram, labels, iterations);
+      } finally {
+        timed.close();
       }
     }
+    return labels;
+  }
 
-    BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+  /**
+   * Returns the number of iterations the last call to evaluate ran.
+   */
+  public int getIterations() {
+    return iterations;
+  }
 
-    for (int y = 0; y < height; y++) {
-      for (int x = 0; x < width; x++) {
-        output.setRGB(x, y, clusters[lt[(width * y) + x]].getRGB());
+  /**
+   * Returns, for each assignment pass of the last evaluate (the initial one, then one per
+   * iteration), how many colour-to-centre distances were measured.
+   */
+  public long[] getDistanceEvaluations() {
+    return Arrays.copyOf(distanceEvaluations, iterations + 1);
+  }
+
+  /**
+   * Returns, for each assignment pass of the last evaluate, how many colour-to-centre distances
+   * the engine proved unnecessary and skipped.
+   */
+  public long[] getSkippedDistanceEvaluations() {
+    return Arrays.copyOf(skippedDistanceEvaluations, iterations + 1);
+  }
+
+  /**
+   * Labels every colour with its nearest centre, splitting the colours into chunks that run in
+   * parallel. Each chunk gathers its colours into its own per-cluster totals, which are merged
+   * once at the end; integer totals make the result independent of scheduling. Returns the
+   * merged count, red, green and blue totals of each cluster, four entries per cluster.
+   */
+  private long[] assign(ColourHistogram histogram, int[] labels, int pass) {
+    int k = clusters.length;
+    long[] sums = new long[4 * k];
+    long[] evaluations = new long[1];
+    int[] farthest = new int[2];
+    if (engine == Engine.HAMERLY && drift == null) {
+      upper = new int[labels.length];
+      lower = new int[labels.length];
+    } else if (drift != null) {
+      for (int c = 1; c < k; c++) {
+        if (drift[c] > drift[farthest[0]]) {
+          farthest[0] = c;
+        }
+      }
+      for (int c = 0; c < k; c++) {
+        if (c != farthest[0]) {
+          farthest[1] = Math.max(farthest[1], drift[c]);
+        }
       }
     }
-    return output;
+
+    executor.forEachRange(labels.length, CHUNK_SIZE, (from, y0, to, y1) -> {
+      long[] local = new long[4 * k];
+      long measured = 0;
+      for (int i = from; i < to; i++) {
+        int rgb = histogram.colour(i);
+        if (engine == Engine.BRUTE_FORCE) {
+          labels[i] = minimalCluster(rgb).getName();
+          measured += k;
+        } else if (drift == null) {
+          labels[i] = boundedScan(rgb, i);
+          measured += k;
+        } else {
+          measured += boundedAssign(rgb, i, labels, farthest[0], farthest[1]);
+        }
+        int c = 4 * labels[i];
+        int count = histogram.count(i);
+        local[c] += count;
+        local[c + 1] += (long) (rgb >> 16 & 0xff) * count;
+        local[c + 2] += (long) (rgb >> 8 & 0xff) * count;
+        local[c + 3] += (long) (rgb & 0xff) * count;
+      }
+      synchronized (sums) {
+        for (int c = 0; c < local.length; c++) {
+          sums[c] += local[c];
+        }
+        evaluations[0] += measured;
+      }
+    });
+    distanceEvaluations[pass] = evaluations[0];
+    skippedDistanceEvaluations[pass] = Math.max(0, (long) labels.length * k - evaluations[0]);
+    return sums;
+  }
+
+  /**
+   * Re-labels one colour using its Hamerly bounds, widened by the latest drift, and returns how
+   * many distances had to be measured.
+   */
+  private int boundedAssign(int rgb, int index, int[] labels, int farthest, int secondFarthest) {
+    int label = labels[index];
+    upper[index] += drift[label];
+    lower[index] -= label == farthest ? secondFarthest : drift[farthest];
+    if (lower[index] / 3 > upper[index] / 3) {
+      return 0;
+    }
+    upper[index] = clusters[label].distance(rgb);
+    if (lower[index] / 3 > upper[index] / 3) {
+      return 1;
+    }
+    labels[index] = boundedScan(rgb, index);
+    return 1 + clusters.length;
+  }
+
+  /**
+   * Finds the nearest centre exactly as minimalCluster does, and records the distance to it and
+   * to the nearest other centre as the colour's bounds.
+   */
+  private int boundedScan(int rgb, int index) {
+    int best = 0;
+    int bestDistance = clusters[0].distance(rgb);
+    int runnerUp = Integer.MAX_VALUE;
+    for (int c = 1; c < clusters.length; c++) {
+      int distance = clusters[c].distance(rgb);
+      if (distance / 3 < bestDistance / 3) {
+        runnerUp = Math.min(runnerUp, bestDistance);
+        best = c;
+        bestDistance = distance;
+      } else {
+        runnerUp = Math.min(runnerUp, distance);
+      }
+    }
+    upper[index] = bestDistance;
+    lower[index] = runnerUp;
+    return best;
   }
 
   public Cluster[] generateClusters(int kvalue, BufferedImage givenImage) {
@@ -78,9 +325,15 @@ public class KmeansClustering {
   }
 
   public static BufferedImage imageLoad(String filepath) {
+    if (RawRaster.isRaw(filepath)) {
+      return new Picture(filepath).image();
+    }
     BufferedImage output;
-    try {
+    try (Instrumentation.Stage stage = Instrumentation.stage("decode")) {
       output = ImageIO.read(new File(filepath));
+      if (output != null) {
+        stage.bytes(filepath).pixels((long) output.getWidth() * output.getHeight());
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -88,13 +341,19 @@ public class KmeansClustering {
   }
 
   public static void imageSave(String file, BufferedImage givenImage) {
-    try {
-      ImageIO.write(givenImage, "png", new File(file));
+    imageSave(file, givenImage, PngEncoder.Mode.DEFAULT);
+  }
+
+  public static void imageSave(String file, BufferedImage givenImage, PngEncoder.Mode mode) {
+    if (RawRaster.isRaw(file)) {
+      new Picture(givenImage).saveAs(file);
+      return;
+    }
+    try (Instrumentation.Stage stage = Instrumentation.stage("encode")) {
+      new PngEncoder(mode).write(givenImage, file);
+      stage.bytes(file).pixels((long) givenImage.getWidth() * givenImage.getHeight());
     } catch (Exception error) {
       System.out.println(error + "Given image '" + file + "' saving failed.");
     }
   }
 }
-
-
-
@@ -0,0 +1,25 @@
+package picture;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One iteration of k-means, full or mini-batch. The event's duration is the iteration's wall time.
+ */
+@Name("picture.KmeansIteration")
+@Label("K-means Iteration")
+@Category("PixelFast")
+@StackTrace(false)
+final class KmeansIterationEvent extends Event {
+  @Label("Iteration")
+  int iteration;
+
+  @Label("Clusters")
+  int clusters;
+
+  @Label("Mini-batch")
+  boolean miniBatch;
+}
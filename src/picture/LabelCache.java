@@ -0,0 +1,102 @@
+package picture;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Remembers the cluster label of recently seen colours, so a run of pixels sharing a colour pays
+ * for one nearest-centre search instead of one per pixel. The table is direct-mapped: a colour's
+ * slot is given by the top bits of each channel, and the slot also records the remaining low
+ * bits, so a lookup only hits for exactly the colour that was stored. Labels are only valid for
+ * the centres they were computed against; clear() must be called whenever the centres move.
+ *
+ * <p>Each slot is a single int, written and read in one access, so threads may share a table
+ * without locking: a racing write can only replace one valid entry with another.
+ */
+final class LabelCache {
+  static final int DEFAULT_BITS = 15;
+  static final int MAX_LABELS = 1 << 12;
+  private static final int LABEL_BITS = 12;
+
+  private final int channelBits;
+  private final int[] slots;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache of 2^bits slots of four bytes each. bits must be a multiple of 3 between 6
+   * and 24; at 24 every colour has its own slot.
+   */
+  LabelCache(int bits) {
+    if (bits < 6 || bits > 24 || bits % 3 != 0) {
+      throw new IllegalArgumentException("Label cache bits must be 6, 9, ..., 24");
+    }
+    channelBits = bits / 3;
+    slots = new int[1 << bits];
+  }
+
+  /**
+   * Returns a cache of 2^bits slots, emptied for a new set of centres, reusing the given cache
+   * when it has that size. Returns null when bits is 0, which turns caching off, or when there
+   * are more labels than a slot can hold.
+   */
+  static LabelCache reuse(LabelCache cache, int bits, int labelCount) {
+    if (bits == 0 || labelCount > MAX_LABELS) {
+      return null;
+    }
+    if (cache == null || cache.slots.length != 1 << bits) {
+      return new LabelCache(bits);
+    }
+    cache.clear();
+    return cache;
+  }
+
+  /**
+   * Forgets every stored label and resets the hit and miss counts.
+   */
+  void clear() {
+    Arrays.fill(slots, 0);
+    hits.set(0);
+    misses.set(0);
+  }
+
+  /**
+   * Stores in labels[offset + i - from] the label of colours[i] for every i in [from, to),
+   * taking it from the cache when the colour is there and from exact otherwise. Labels must be
+   * smaller than MAX_LABELS.
+   */
+  void label(int[] colours, int from, int to, int[] labels, int offset, IntUnaryOperator exact) {
+    int shift = 8 - channelBits;
+    int low = (1 << shift) - 1;
+    int found = 0;
+    for (int i = from; i < to; i++) {
+      int rgb = colours[i];
+      int red = rgb >> 16 & 0xff;
+      int green = rgb >> 8 & 0xff;
+      int blue = rgb & 0xff;
+      int slot = (red >> shift) << 2 * channelBits | (green >> shift) << channelBits
+              | blue >> shift;
+      int tag = (red & low) << 2 * shift | (green & low) << shift | (blue & low);
+      int entry = slots[slot];
+      if (entry != 0 && (entry - 1) >>> LABEL_BITS == tag) {
+        labels[offset + i - from] = (entry - 1) & (MAX_LABELS - 1);
+        found++;
+      } else {
+        int label = exact.applyAsInt(rgb);
+        slots[slot] = (tag << LABEL_BITS | label) + 1;
+        labels[offset + i - from] = label;
+      }
+    }
+    hits.addAndGet(found);
+    misses.addAndGet(to - from - found);
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+}
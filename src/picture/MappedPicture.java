@@ -0,0 +1,156 @@
+package picture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.function.UnaryOperator;
+
+/**
+ * A picture held in a memory-mapped raw raster file instead of on the heap. Operations read the
+ * picture in bands of rows, transform each band as an ordinary Picture and write it to another
+ * mapped file, so only a few bands are ever on the heap and the rest of the pixels move through
+ * the OS page cache. Point operations, horizontal flips and blurs stream this way; vertical flips
+ * write each band to its mirrored position.
+ */
+public class MappedPicture implements Closeable {
+  private static final int BAND_PIXELS = 1 << 20;
+
+  private final RawRaster raster;
+
+  private MappedPicture(RawRaster raster) {
+    this.raster = raster;
+  }
+
+  /**
+   * Maps an existing raw raster file for reading.
+   */
+  public static MappedPicture open(String path) {
+    try {
+      return new MappedPicture(RawRaster.open(Paths.get(path), false));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Creates, or overwrites, a raw raster file holding a black picture of the given size.
+   */
+  public static MappedPicture create(String path, int width, int height) {
+    try {
+      return new MappedPicture(RawRaster.create(Paths.get(path), width, height));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes a heap picture to a raw raster file.
+   */
+  public static void save(Picture picture, String path) {
+    try (MappedPicture mapped = create(path, picture.getWidth(), picture.getHeight())) {
+      mapped.raster.setRows(0, picture.getHeight(), picture.raster(), 0);
+    }
+  }
+
+  public int getWidth() {
+    return raster.getWidth();
+  }
+
+  public int getHeight() {
+    return raster.getHeight();
+  }
+
+  public int getRGB(int x, int y) {
+    return raster.getRGB(x, y);
+  }
+
+  public void setRGB(int x, int y, int rgb) {
+    raster.setRGB(x, y, rgb);
+  }
+
+  /**
+   * Copies the whole picture onto the heap.
+   */
+  public Picture toPicture() {
+    return readRows(0, getHeight());
+  }
+
+  /**
+   * Applies an operation that maps each row onto the same row, such as a point operation or a
+   * horizontal flip, band by band, and writes the result to a new raw raster file.
+   */
+  public MappedPicture mapRows(UnaryOperator<Picture> operation, String output) {
+    MappedPicture result = create(output, getWidth(), getHeight());
+    forEachBand(0, (y0, y1) -> result.writeRows(y0, operation.apply(readRows(y0, y1))));
+    return result;
+  }
+
+  /**
+   * Mirrors the picture top to bottom into a new raw raster file.
+   */
+  public MappedPicture flipVertical(String output) {
+    MappedPicture result = create(output, getWidth(), getHeight());
+    int height = getHeight();
+    forEachBand(0, (y0, y1) -> result.writeRows(height - y1, readRows(y0, y1).flip("V")));
+    return result;
+  }
+
+  /**
+   * Blurs the picture into a new raw raster file, with the same result as Picture.blur. Each band
+   * is read with radius extra rows on either side, so the window of every row it writes lies
+   * inside the band.
+   */
+  public MappedPicture blur(int radius, BorderMode mode, String output) {
+    MappedPicture result = create(output, getWidth(), getHeight());
+    int width = getWidth();
+    int height = getHeight();
+    // Bands at least 2 * radius + 1 tall keep IGNORE's copied border rows at the picture's edges.
+    forEachBand(2 * radius + 1, (y0, y1) -> {
+      int top = mode == BorderMode.IGNORE ? Math.max(0, y0 - radius) : y0 - radius;
+      int bottom = mode == BorderMode.IGNORE ? Math.min(height, y1 + radius) : y1 + radius;
+      Picture band = new Picture(width, bottom - top);
+      for (int y = top; y < bottom; y++) {
+        int row = mode.index(y, height);
+        raster.getRows(row, row + 1, band.writableRaster(), (y - top) * width);
+      }
+      int[] blurred = band.blur(radius, mode).raster();
+      result.raster.setRows(y0, y1, blurred, (y0 - top) * width);
+    });
+    return result;
+  }
+
+  @Override
+  public void close() {
+    try {
+      raster.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private interface BandKernel {
+    void apply(int y0, int y1);
+  }
+
+  private void forEachBand(int minimumHeight, BandKernel kernel) {
+    int bandHeight = Math.max(minimumHeight, Math.max(1, BAND_PIXELS / Math.max(1, getWidth())));
+    TileExecutor.shared().forEachRowBand(getWidth(), getHeight(), bandHeight,
+            (x0, y0, x1, y1) -> kernel.apply(y0, y1));
+  }
+
+  /**
+   * Copies rows [y0, y1) onto the heap.
+   */
+  Picture readRows(int y0, int y1) {
+    Picture band = new Picture(getWidth(), y1 - y0);
+    raster.getRows(y0, y1, band.writableRaster(), 0);
+    return band;
+  }
+
+  /**
+   * Writes the band's rows over the picture's, starting at row y0.
+   */
+  void writeRows(int y0, Picture band) {
+    raster.setRows(y0, y0 + band.getHeight(), band.raster(), 0);
+  }
+}
@@ -0,0 +1,219 @@
+package picture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Reduces an image to k colours with mini-batch k-means (Sculley, "Web-scale k-means
+ * clustering"). Each iteration samples a fixed number of pixels, assigns them to their nearest
+ * centre, and moves each centre towards its samples with a learning rate of one over the number
+ * of samples it has seen. Apart from the input and output images, memory and time depend on the
+ * batch size and iteration count rather than on the number of pixels: samples are read straight
+ * from the input, no label array or colour histogram is kept, and the final labelling pass writes
+ * each pixel's colour straight into the output, remembering recent colours' labels in a cache of
+ * fixed size.
+ */
+public class MiniBatchKmeans {
+  public static final long DEFAULT_SEED = 1;
+
+  private final int batchSize;
+  private final int iterations;
+  private final long seed;
+  private final TileExecutor executor;
+  private int labelCacheBits = LabelCache.DEFAULT_BITS;
+  private LabelCache labelCache;
+
+  public MiniBatchKmeans(int batchSize, int iterations) {
+    this(batchSize, iterations, DEFAULT_SEED, TileExecutor.shared());
+  }
+
+  /**
+   * Creates a clustering that runs the given number of iterations over batches of batchSize
+   * pixels, drawn with a random generator seeded by seed. The same seed always gives the same
+   * result, whatever the executor's parallelism.
+   */
+  public MiniBatchKmeans(int batchSize, int iterations, long seed, TileExecutor executor) {
+    if (batchSize < 1 || iterations < 1) {
+      throw new IllegalArgumentException("Batch size and iterations must be positive");
+    }
+    this.batchSize = batchSize;
+    this.iterations = iterations;
+    this.seed = seed;
+    this.executor = executor;
+  }
+
+  public BufferedImage evaluate(BufferedImage givenImage, int kvalue) {
+    int width = givenImage.getWidth();
+    int height = givenImage.getHeight();
+    Cluster[] clusters = fit(givenImage, kvalue);
+    IntUnaryOperator exact = rgb -> minimalCluster(clusters, rgb);
+
+    BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] data = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+    executor.forEachTile(width, height, (x0, y0, x1, y1) -> {
+      int[] row = new int[x1 - x0];
+      for (int y = y0; y < y1; y++) {
+        givenImage.getRGB(x0, y, x1 - x0, 1, row, 0, x1 - x0);
+        labelPixels(row, row, exact);
+        for (int x = x0; x < x1; x++) {
+          data[y * width + x] = clusters[row[x - x0]].getRGB() & 0xffffff;
+        }
+      }
+    });
+    return output;
+  }
+
+  /**
+   * Clusters the image exactly as evaluate does, but returns an indexed-colour image whose
+   * palette holds the distinct centres and whose pixels are indices into it. Since there is no
+   * histogram, centres that label no pixel stay in the palette.
+   *
+   * @throws IllegalArgumentException if kvalue is more than 256.
+   */
+  public BufferedImage evaluateIndexed(BufferedImage givenImage, int kvalue) {
+    if (kvalue > 256) {
+      throw new IllegalArgumentException("A palette holds at most 256 colours");
+    }
+    int width = givenImage.getWidth();
+    Cluster[] clusters = fit(givenImage, kvalue);
+    int[] colours = new int[kvalue];
+    boolean[] used = new boolean[kvalue];
+    for (int c = 0; c < kvalue; c++) {
+      colours[c] = clusters[c].getRGB();
+      used[c] = true;
+    }
+    int[] indexOfCluster = new int[kvalue];
+    int[] palette = PaletteImage.compact(colours, used, indexOfCluster);
+    IntUnaryOperator exact = rgb -> minimalCluster(clusters, rgb);
+    return PaletteImage.create(width, givenImage.getHeight(), palette, (y, row) -> {
+      givenImage.getRGB(0, y, width, 1, row, 0, width);
+      labelPixels(row, row, exact);
+      for (int x = 0; x < width; x++) {
+        row[x] = indexOfCluster[row[x]];
+      }
+    }, executor);
+  }
+
+  /**
+   * Sets the size of the cache that labels pixels in the final pass to 2^bits slots of four
+   * bytes each, where bits is a multiple of 3 from 6 to 24, or turns the cache off for 0.
+   */
+  public void setLabelCacheBits(int bits) {
+    if (bits != 0 && (bits < 6 || bits > 24 || bits % 3 != 0)) {
+      throw new IllegalArgumentException("Label cache bits must be 0 or 6, 9, ..., 24");
+    }
+    labelCacheBits = bits;
+  }
+
+  /**
+   * Returns how many pixels of the last final pass took their label from the cache.
+   */
+  public long getLabelCacheHits() {
+    return labelCache == null ? 0 : labelCache.getHits();
+  }
+
+  /**
+   * Returns how many pixels of the last final pass had to search for their nearest centre.
+   */
+  public long getLabelCacheMisses() {
+    return labelCache == null ? 0 : labelCache.getMisses();
+  }
+
+  /**
+   * Replaces each colour of colours with its label in labels, which may be the same array.
+   */
+  private void labelPixels(int[] colours, int[] labels, IntUnaryOperator exact) {
+    if (labelCache != null) {
+      labelCache.label(colours, 0, colours.length, labels, 0, exact);
+      return;
+    }
+    for (int i = 0; i < colours.length; i++) {
+      labels[i] = exact.applyAsInt(colours[i]);
+    }
+  }
+
+  /**
+   * Runs the mini-batch iterations and returns the final centres, rounded to whole colours. The
+   * label cache is emptied, as the centres it was filled against have moved.
+   */
+  private Cluster[] fit(BufferedImage givenImage, int kvalue) {
+    int width = givenImage.getWidth();
+    int height = givenImage.getHeight();
+
+    Cluster[] seeds = new KmeansClustering().generateClusters(kvalue, givenImage);
+    double[] centres = new double[3 * kvalue];
+    for (int c = 0; c < kvalue; c++) {
+      centres[3 * c] = seeds[c].redColor;
+      centres[3 * c + 1] = seeds[c].greenColor;
+      centres[3 * c + 2] = seeds[c].blueColor;
+    }
+
+    long[] seen = new long[kvalue];
+    int[] batch = new int[batchSize];
+    int[] nearest = new int[batchSize];
+    Random random = new Random(seed);
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      Instrumentation.Iteration timed =
+              Instrumentation.kmeansIteration(iteration + 1, kvalue, true);
+      try {
+        for (int i = 0; i < batchSize; i++) {
+          batch[i] = givenImage.getRGB(random.nextInt(width), random.nextInt(height));
+          nearest[i] = nearestCentre(centres, batch[i]);
+        }
+        for (int i = 0; i < batchSize; i++) {
+          int c = nearest[i];
+          double rate = 1.0 / ++seen[c];
+          centres[3 * c] += rate * ((batch[i] >> 16 & 0xff) - centres[3 * c]);
+          centres[3 * c + 1] += rate * ((batch[i] >> 8 & 0xff) - centres[3 * c + 1]);
+          centres[3 * c + 2] += rate * ((batch[i] & 0xff) - centres[3 * c + 2]);
+        }
+      } finally {
+        timed.close();
+      }
+    }
+
+    Cluster[] clusters = new Cluster[kvalue];
+    for (int c = 0; c < kvalue; c++) {
+      clusters[c] = new Cluster(c, Picture.pack((int) Math.round(centres[3 * c]),
+              (int) Math.round(centres[3 * c + 1]), (int) Math.round(centres[3 * c + 2])));
+    }
+    labelCache = LabelCache.reuse(labelCache, labelCacheBits, kvalue);
+    return clusters;
+  }
+
+  private static int nearestCentre(double[] centres, int rgb) {
+    int red = rgb >> 16 & 0xff;
+    int green = rgb >> 8 & 0xff;
+    int blue = rgb & 0xff;
+    int best = 0;
+    double minimum = Double.MAX_VALUE;
+    for (int c = 0; c < centres.length / 3; c++) {
+      double distance = Math.abs(centres[3 * c] - red) + Math.abs(centres[3 * c + 1] - green)
+              + Math.abs(centres[3 * c + 2] - blue);
+      if (distance < minimum) {
+        minimum = distance;
+        best = c;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Picks the cluster with the smallest separation, preferring the lowest index on ties, as
+   * KmeansClustering.minimalCluster does.
+   */
+  private static int minimalCluster(Cluster[] clusters, int rgb) {
+    int best = 0;
+    int minimum = clusters[0].separation(rgb);
+    for (int c = 1; c < clusters.length; c++) {
+      int separation = clusters[c].separation(rgb);
+      if (separation < minimum) {
+        minimum = separation;
+        best = c;
+      }
+    }
+    return best;
+  }
+}
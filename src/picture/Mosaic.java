@@ -0,0 +1,142 @@
+package picture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a mosaic of square tiles, each copied from the same position in one of the source
+ * pictures. Tiles are assigned to sources round-robin, with every row starting one source later
+ * than the previous row did. Tiles are copied row by row with bulk array copies.
+ */
+final class Mosaic {
+
+  private Mosaic() { }
+
+  static Picture fromPictures(List<Picture> pictures, int tileSize) {
+    int smallestWidth = pictures.stream().mapToInt(Picture::getWidth).min().orElse(0);
+    int smallestHeight = pictures.stream().mapToInt(Picture::getHeight).min().orElse(0);
+    smallestWidth -= smallestWidth % tileSize;
+    smallestHeight -= smallestHeight % tileSize;
+    Picture mosaic = new Picture(smallestWidth, smallestHeight);
+    int[] assignment = tileAssignment(pictures.size(), smallestWidth, smallestHeight, tileSize);
+    for (int source = 0; source < pictures.size(); source++) {
+      copyTiles(pictures.get(source), 0, 0, mosaic, assignment, source, tileSize);
+    }
+    return mosaic;
+  }
+
+  /**
+   * Builds the mosaic straight from image files. Every source is opened once and read top to
+   * bottom through its own BandStream.RowReader, a band at most a tile high at a time, so each
+   * holds only that band's rows however large it is.
+   */
+  static Picture fromFiles(List<String> filepaths, int tileSize) {
+    List<BandStream.RowReader> readers = new ArrayList<>();
+    try {
+      for (String filepath : filepaths) {
+        readers.add(BandStream.open(filepath));
+      }
+      return fromReaders(readers, tileSize);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      for (BandStream.RowReader reader : readers) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          // Every row needed has been read.
+        }
+      }
+    }
+  }
+
+  private static Picture fromReaders(List<BandStream.RowReader> readers, int tileSize)
+          throws IOException {
+    int smallestWidth = readers.stream().mapToInt(BandStream.RowReader::getWidth).min().orElse(0);
+    int smallestHeight =
+            readers.stream().mapToInt(BandStream.RowReader::getHeight).min().orElse(0);
+    int widest = readers.stream().mapToInt(BandStream.RowReader::getWidth).max().orElse(1);
+    smallestWidth -= smallestWidth % tileSize;
+    smallestHeight -= smallestHeight % tileSize;
+    Picture mosaic = new Picture(smallestWidth, smallestHeight);
+    int[] assignment = tileAssignment(readers.size(), smallestWidth, smallestHeight, tileSize);
+    int[] dst = mosaic.writableRaster();
+    int columns = smallestWidth / tileSize;
+    // Bands never cross a row of tiles, so each is copied from the tiles of a single row.
+    int bandHeight = Math.min(tileSize, Math.max(1, BandStream.BAND_PIXELS / widest));
+    int[][] bands = new int[readers.size()][];
+    for (int y = 0; y < smallestHeight; ) {
+      int tileRow = y / tileSize;
+      int rows = Math.min(bandHeight, (tileRow + 1) * tileSize - y);
+      for (int source = 0; source < readers.size(); source++) {
+        BandStream.RowReader reader = readers.get(source);
+        int stride = reader.getWidth();
+        if (bands[source] == null) {
+          bands[source] = new int[bandHeight * stride];
+        }
+        reader.readRows(rows, bands[source], 0);
+        for (int column = 0; column < columns; column++) {
+          if (assignment[tileRow * columns + column] != source) {
+            continue;
+          }
+          for (int row = 0; row < rows; row++) {
+            System.arraycopy(bands[source], row * stride + column * tileSize, dst,
+                    (y + row) * smallestWidth + column * tileSize, tileSize);
+          }
+        }
+      }
+      y += rows;
+    }
+    return mosaic;
+  }
+
+  /**
+   * Returns, for every tile in row-major order, the index of the source it is copied from, or -1
+   * for a tile that is left black.
+   */
+  static int[] tileAssignment(int sources, int width, int height, int tileSize) {
+    int columns = width / tileSize;
+    int rows = height / tileSize;
+    int[] assignment = new int[columns * rows];
+    int i = 0;
+    int startIndexOfRow = 0;
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        if (column == 0) {
+          if (i == startIndexOfRow) {
+            i = (i + 1) % sources;
+          }
+          startIndexOfRow = i;
+        }
+        assignment[row * columns + column] = i < (width - 1) * (height - 1) ? i : -1;
+        i = (i + 1) % sources;
+      }
+    }
+    return assignment;
+  }
+
+  /**
+   * Copies every tile assigned to the given source from part, whose top-left pixel sits at
+   * (originX, originY) of the full source picture.
+   */
+  private static void copyTiles(Picture part, int originX, int originY, Picture mosaic,
+                                int[] assignment, int source, int tileSize) {
+    int[] src = part.raster();
+    int[] dst = mosaic.writableRaster();
+    int stride = part.getWidth();
+    int width = mosaic.getWidth();
+    int columns = width / tileSize;
+    for (int tile = 0; tile < assignment.length; tile++) {
+      if (assignment[tile] != source) {
+        continue;
+      }
+      int xs = (tile % columns) * tileSize;
+      int ys = (tile / columns) * tileSize;
+      for (int y = ys; y < ys + tileSize; y++) {
+        System.arraycopy(src, (y - originY) * stride + xs - originX, dst, y * width + xs,
+                tileSize);
+      }
+    }
+  }
+}
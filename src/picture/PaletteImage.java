@@ -0,0 +1,108 @@
+package picture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * Builds indexed-colour images whose pixels are palette indices of 1, 2, 4 or 8 bits, the
+ * smallest depth that fits the palette. Written as PNG, such an image is stored as one index per
+ * pixel plus a palette, rather than three bytes per pixel.
+ */
+final class PaletteImage {
+
+  /**
+   * Fills labels[0, width) with the palette index of every pixel in row y.
+   */
+  interface RowLabeller {
+    void label(int y, int[] labels);
+  }
+
+  private PaletteImage() { }
+
+  /**
+   * Returns the number of bits per index needed for a palette of the given size.
+   */
+  static int bitsFor(int colours) {
+    if (colours <= 2) {
+      return 1;
+    }
+    if (colours <= 4) {
+      return 2;
+    }
+    return colours <= 16 ? 4 : 8;
+  }
+
+  /**
+   * Returns the distinct colours among the used entries of colours, in order of first use, and
+   * stores in indexOf[i] the position of colours[i] in the result (0 for unused entries). A
+   * smaller palette may need fewer bits per index and always needs a shorter palette chunk.
+   */
+  static int[] compact(int[] colours, boolean[] used, int[] indexOf) {
+    int[] palette = new int[colours.length];
+    int size = 0;
+    for (int i = 0; i < colours.length; i++) {
+      if (!used[i]) {
+        continue;
+      }
+      int index = 0;
+      while (index < size && palette[index] != colours[i]) {
+        index++;
+      }
+      if (index == size) {
+        palette[size++] = colours[i];
+      }
+      indexOf[i] = index;
+    }
+    return Arrays.copyOf(palette, Math.max(1, size));
+  }
+
+  /**
+   * Creates an image of palette indices, filled row by row from the labeller. Rows are labelled
+   * in parallel bands; a band always spans whole rows, so packed indices never share a byte
+   * across bands.
+   *
+   * @throws IllegalArgumentException if the palette has more than 256 colours.
+   */
+  static BufferedImage create(int width, int height, int[] palette, RowLabeller labeller,
+                              TileExecutor executor) {
+    if (palette.length > 256) {
+      throw new IllegalArgumentException("A palette holds at most 256 colours");
+    }
+    int bits = bitsFor(palette.length);
+    IndexColorModel model = new IndexColorModel(bits, palette.length, palette, 0, false, -1,
+            DataBuffer.TYPE_BYTE);
+    BufferedImage image = bits == 8
+            ? new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, model)
+            : new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, model);
+    byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    int stride = bits == 8 ? width
+            : ((MultiPixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+    int perByte = 8 / bits;
+    executor.forEachRowBand(width, height, TileExecutor.DEFAULT_TILE_HEIGHT, (x0, y0, x1, y1) -> {
+      int[] labels = new int[width];
+      for (int y = y0; y < y1; y++) {
+        labeller.label(y, labels);
+        int row = y * stride;
+        if (bits == 8) {
+          for (int x = 0; x < width; x++) {
+            data[row + x] = (byte) labels[x];
+          }
+          continue;
+        }
+        for (int x = 0; x < width; x += perByte) {
+          int packed = 0;
+          for (int i = 0; i < perByte; i++) {
+            int label = x + i < width ? labels[x + i] : 0;
+            packed = (packed << bits) | label;
+          }
+          data[row + x / perByte] = (byte) packed;
+        }
+      }
+    });
+    return image;
+  }
+}
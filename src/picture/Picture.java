@@ -1,64 +1,135 @@
 package picture;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.function.Function;
 import javax.imageio.ImageIO;
 
+/**
+ * A picture backed by a packed-int raster. Every pixel is stored row-major as 0x00RRGGBB in a
+ * single int[] shared with a TYPE_INT_RGB BufferedImage, so bulk operations never allocate a
+ * Color per pixel.
+ */
 public class Picture {
+  private static final int DIGEST_BUFFER_PIXELS = 1 << 14;
+  // Pixels per task for the point operations, which run over the raster as one flat range.
+  private static final int RANGE_CHUNK = 1 << 16;
 
   private final BufferedImage image;
+  private final int[] pixels;
+  private final int width;
+  private final int height;
+  private int hash;
+  private boolean hashIsZero;
+  private volatile String digest;
 
   public Picture(int width, int height) {
-    image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    this(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
   }
 
   public Picture(String filepath) {
+    this(decode(filepath));
+  }
+
+  /**
+   * Wraps the given image. A TYPE_INT_RGB image with a plain row-major layout is adopted as is and
+   * shares its pixels with this picture, so later writes to the image need a call to
+   * invalidate; any other image is converted to a packed copy.
+   */
+  public Picture(BufferedImage source) {
+    image = isPackedRgb(source) ? source : toPackedRgb(source);
+    pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    width = image.getWidth();
+    height = image.getHeight();
+  }
+
+  private static BufferedImage decode(String filepath) {
+    try (Instrumentation.Stage stage = Instrumentation.stage("decode")) {
+      BufferedImage decoded = decodeFile(filepath);
+      stage.bytes(filepath).pixels((long) decoded.getWidth() * decoded.getHeight());
+      return decoded;
+    }
+  }
+
+  private static BufferedImage decodeFile(String filepath) {
+    if (RawRaster.isRaw(filepath)) {
+      try (MappedPicture mapped = MappedPicture.open(filepath)) {
+        return mapped.toPicture().image;
+      }
+    }
+    BufferedImage decoded;
     try {
-      image = ImageIO.read(new File(filepath));
+      decoded = ImageIO.read(new File(filepath));
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
+    if (decoded == null) {
+      throw new RuntimeException(new IOException("No image reader for '" + filepath + "'"));
+    }
+    return decoded;
+  }
+
+  private static boolean isPackedRgb(BufferedImage source) {
+    if (source.getType() != BufferedImage.TYPE_INT_RGB
+            || !(source.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+      return false;
+    }
+    SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) source.getSampleModel();
+    return model.getScanlineStride() == source.getWidth()
+            && source.getRaster().getDataBuffer().getOffset() == 0
+            && source.getRaster().getSampleModelTranslateX() == 0
+            && source.getRaster().getSampleModelTranslateY() == 0;
+  }
+
+  private static BufferedImage toPackedRgb(BufferedImage source) {
+    int w = source.getWidth();
+    int h = source.getHeight();
+    BufferedImage packed = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    int[] data = ((DataBufferInt) packed.getRaster().getDataBuffer()).getData();
+    source.getRGB(0, 0, w, h, data, 0, w);
+    for (int i = 0; i < data.length; i++) {
+      data[i] &= 0xffffff;
+    }
+    return packed;
   }
 
   public boolean contains(int x, int y) {
     return x >= 0 && y >= 0 && x < getWidth() && y < getHeight();
   }
 
+  /**
+   * Returns whether the other picture has the same size and the same packed 0xRRGGBB values.
+   * Pictures decoded from files with different colour models compare equal when their colours
+   * do, since every picture holds its pixels in the same packed form.
+   */
   @Override
   public boolean equals(Object other) {
-    if (other == null) {
-      return false;
+    if (this == other) {
+      return true;
     }
     if (!(other instanceof Picture)) {
       return false;
     }
-
     Picture otherPic = (Picture) other;
-
-    if (image == null || otherPic.image == null) {
-      return image == otherPic.image;
-    }
-    if (image.getWidth() != otherPic.image.getWidth()
-            || image.getHeight() != otherPic.image.getHeight()) {
+    if (width != otherPic.width || height != otherPic.height) {
       return false;
     }
-
-    for (int i = 0; i < image.getWidth(); i++) {
-      for (int j = 0; j < image.getHeight(); j++) {
-        if (image.getRGB(i, j) != otherPic.image.getRGB(i, j)) {
-          return false;
-        }
-      }
+    if (hash != 0 && otherPic.hash != 0 && hash != otherPic.hash) {
+      return false;
     }
-    return true;
+    int size = width * height;
+    return Arrays.equals(pixels, 0, size, otherPic.pixels, 0, size);
   }
 
   public int getHeight() {
-    return image.getHeight();
+    return height;
   }
 
   /**
@@ -68,31 +139,111 @@ public class Picture {
    *                                        the boundaries of this picture.
    */
   public Color getPixel(int x, int y) {
-    int rgb = image.getRGB(x, y);
+    int rgb = getRGB(x, y);
     return new Color((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
   }
 
+  /**
+   * Returns the packed 0xRRGGBB value of the pixel located at (x,y).
+   *
+   * @throws ArrayIndexOutOfBoundsException if the specified pixel-location is not contained within
+   *                                        the boundaries of this picture.
+   */
+  public int getRGB(int x, int y) {
+    return pixels[index(x, y)];
+  }
+
+  /**
+   * Copies the packed 0xRRGGBB values of the w*h region starting at (x,y) into dst, row by row,
+   * beginning at offset and advancing scansize elements per row.
+   *
+   * @throws ArrayIndexOutOfBoundsException if the region is not contained within this picture.
+   */
+  public void getRGB(int x, int y, int w, int h, int[] dst, int offset, int scansize) {
+    checkRegion(x, y, w, h);
+    for (int row = 0; row < h; row++) {
+      System.arraycopy(pixels, (y + row) * width + x, dst, offset + row * scansize, w);
+    }
+  }
+
   public int getWidth() {
-    return image.getWidth();
+    return width;
   }
 
+  /**
+   * Returns a hash of the size and pixels, computed on first use and cached until the picture
+   * is next modified.
+   */
   @Override
   public int hashCode() {
-    if (image == null) {
-      return -1;
+    int h = hash;
+    if (h == 0 && !hashIsZero) {
+      h = 31 * (31 * width + height);
+      for (int i = 0, size = width * height; i < size; i++) {
+        h = 31 * h + pixels[i];
+      }
+      if (h == 0) {
+        hashIsZero = true;
+      } else {
+        hash = h;
+      }
     }
-    int hashCode = 0;
-    for (int i = 0; i < image.getWidth(); i++) {
-      for (int j = 0; j < image.getHeight(); j++) {
-        hashCode = 31 * hashCode + image.getRGB(i, j);
+    return h;
+  }
+
+  /**
+   * Returns the SHA-256 digest of the size and the packed pixels, as lowercase hex, for use as a
+   * content key when deduplicating pictures. Like hashCode it is cached until the picture is next
+   * modified.
+   */
+  public String contentDigest() {
+    String result = digest;
+    if (result == null) {
+      MessageDigest sha;
+      try {
+        sha = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_PIXELS * 4);
+      buffer.putInt(width).putInt(height).flip();
+      sha.update(buffer);
+      for (int from = 0, size = width * height; from < size; from += DIGEST_BUFFER_PIXELS) {
+        int length = Math.min(DIGEST_BUFFER_PIXELS, size - from);
+        buffer.clear();
+        buffer.asIntBuffer().put(pixels, from, length);
+        buffer.limit(length * 4);
+        sha.update(buffer);
       }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : sha.digest()) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      result = hex.toString();
+      digest = result;
     }
-    return hashCode;
+    return result;
   }
 
+  /**
+   * Writes the picture as PNG, or as a raw raster file if the path ends in ".raw".
+   */
   public void saveAs(String filepath) {
-    try {
-      ImageIO.write(image, "png", new File(filepath));
+    saveAs(filepath, PngEncoder.Mode.DEFAULT);
+  }
+
+  /**
+   * Writes the picture as PNG, compressed as the mode says, or as a raw raster file if the path
+   * ends in ".raw".
+   */
+  public void saveAs(String filepath, PngEncoder.Mode mode) {
+    try (Instrumentation.Stage stage = Instrumentation.stage("encode")) {
+      if (RawRaster.isRaw(filepath)) {
+        MappedPicture.save(this, filepath);
+      } else {
+        new PngEncoder(mode).write(image, filepath);
+      }
+      stage.bytes(filepath).pixels((long) width * height);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -105,14 +256,36 @@ public class Picture {
    *                                        the boundaries of this picture.
    */
   public void setPixel(int x, int y, Color rgb) {
+    setRGB(x, y, pack(rgb.getRed(), rgb.getGreen(), rgb.getBlue()));
+  }
 
-    image.setRGB(
-            x,
-            y,
-            0xff000000
-                    | (((0xff & rgb.getRed()) << 16)
-                    | ((0xff & rgb.getGreen()) << 8)
-                    | (0xff & rgb.getBlue())));
+  /**
+   * Updates the pixel at (x,y) with a packed 0xRRGGBB value; any alpha bits are discarded.
+   *
+   * @throws ArrayIndexOutOfBoundsException if the specified pixel-location is not contained within
+   *                                        the boundaries of this picture.
+   */
+  public void setRGB(int x, int y, int rgb) {
+    pixels[index(x, y)] = rgb & 0xffffff;
+    invalidate();
+  }
+
+  /**
+   * Writes the w*h region starting at (x,y) from packed 0xRRGGBB values in src, read row by row
+   * from offset and advancing scansize elements per row. Any alpha bits are discarded.
+   *
+   * @throws ArrayIndexOutOfBoundsException if the region is not contained within this picture.
+   */
+  public void setRGB(int x, int y, int w, int h, int[] src, int offset, int scansize) {
+    checkRegion(x, y, w, h);
+    for (int row = 0; row < h; row++) {
+      int from = offset + row * scansize;
+      int to = (y + row) * width + x;
+      for (int i = 0; i < w; i++) {
+        pixels[to + i] = src[from + i] & 0xffffff;
+      }
+    }
+    invalidate();
   }
 
   /**
@@ -123,13 +296,13 @@ public class Picture {
     StringBuilder sb = new StringBuilder();
     for (int y = 0; y < getHeight(); y++) {
       for (int x = 0; x < getWidth(); x++) {
-        Color rgb = getPixel(x, y);
+        int rgb = pixels[y * width + x];
         sb.append("(");
-        sb.append(rgb.getRed());
+        sb.append(red(rgb));
         sb.append(",");
-        sb.append(rgb.getGreen());
+        sb.append(green(rgb));
         sb.append(",");
-        sb.append(rgb.getBlue());
+        sb.append(blue(rgb));
         sb.append(")");
       }
       sb.append("\n");
@@ -138,203 +311,254 @@ public class Picture {
     return sb.toString();
   }
 
-  private Picture forEachPixel(Function<Color, Color> transform) {
-    Picture transformed = new Picture(getHeight(), getWidth());
-    for (int x = 0; x < getWidth(); x++) {
-      for (int y = 0; y < getHeight(); y++) {
-        transformed.setPixel(x, y, transform.apply(getPixel(x, y)));
-      }
+  /**
+   * Returns the backing row-major raster for reading. The cached hash and digest are kept, so
+   * callers that write must use writableRaster instead.
+   */
+  int[] raster() {
+    return pixels;
+  }
+
+  /**
+   * Returns the backing row-major raster for a kernel to fill, dropping the cached hash and
+   * digest. Writes go straight into this picture, so callers must keep every value within
+   * 0x00000000 - 0x00ffffff. Writes made through the array after the hash or digest is next
+   * computed need a call to invalidate.
+   */
+  int[] writableRaster() {
+    invalidate();
+    return pixels;
+  }
+
+  /**
+   * Returns the backing image for reading; like the raster, it must not be written without a call
+   * to invalidate.
+   */
+  BufferedImage image() {
+    return image;
+  }
+
+  /**
+   * Drops the cached hash and digest. setRGB and setPixel do this themselves; call it after
+   * changing the pixels any other way, such as through the BufferedImage the picture was created
+   * from.
+   */
+  public void invalidate() {
+    hash = 0;
+    hashIsZero = false;
+    digest = null;
+  }
+
+  static int pack(int red, int green, int blue) {
+    return ((red & 0xff) << 16) | ((green & 0xff) << 8) | (blue & 0xff);
+  }
+
+  static int red(int rgb) {
+    return (rgb >> 16) & 0xff;
+  }
+
+  static int green(int rgb) {
+    return (rgb >> 8) & 0xff;
+  }
+
+  static int blue(int rgb) {
+    return rgb & 0xff;
+  }
+
+  private int index(int x, int y) {
+    if (!contains(x, y)) {
+      throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds: (" + x + "," + y + ")");
+    }
+    return y * width + x;
+  }
+
+  private void checkRegion(int x, int y, int w, int h) {
+    // Compared as differences, since x + w may overflow.
+    if (x < 0 || y < 0 || w < 0 || h < 0 || w > width - x || h > height - y) {
+      throw new ArrayIndexOutOfBoundsException(
+              "Region out of bounds: " + w + "x" + h + " at (" + x + "," + y + ")");
     }
+  }
+
+  /**
+   * Returns a lazy pipeline starting from this picture. Nothing is computed until render().
+   */
+  public Pipeline pipeline() {
+    return new Pipeline(this);
+  }
+
+  /**
+   * Returns a picture of the same size whose pixels the kernel writes, range by range, from this
+   * picture's pixels in parallel.
+   */
+  private Picture forEachPixelRange(RangeKernel kernel) {
+    Picture transformed = new Picture(getWidth(), getHeight());
+    int[] dst = transformed.pixels;
+    TileExecutor.shared().forEachRange(width * height, RANGE_CHUNK,
+            (from, y0, to, y1) -> kernel.apply(pixels, dst, from, to));
     return transformed;
   }
 
+  private interface RangeKernel {
+    void apply(int[] src, int[] dst, int from, int to);
+  }
+
   public Picture invert() {
-    return forEachPixel(c -> new Color(255 - c.getRed(), 255 - c.getGreen(), 255 - c.getBlue()));
+    return forEachPixelRange(PixelKernels.preferred()::invert);
   }
 
   public Picture andyWarholStyle() {
     Picture newPic = new Picture(getWidth() * 2, getHeight() * 2);
-    int i = 2;
-    for (int yy = 0; yy < (getHeight() * 2) - 2; yy += getHeight()) {
-      for (int xx = 0; xx < (getWidth() * 2) - 2; xx += getWidth()) {
-        for (int x = 0; x < getWidth(); x++) {
-          for (int y = 0; y < getHeight(); y++) {
-            Color rgb = getPixel(x, y);
-            newPic.setPixel(xx + x, yy + y, new Color(rgb.getRed() * i,
-                    rgb.getGreen() * i * 4 / 3,
-                    rgb.getBlue() * i * 5 / 3));
+    int[] dst = newPic.pixels;
+    int dstWidth = newPic.width;
+    // Only quadrants starting below 2 * size - 2 are painted, as in the original nested loops.
+    int columns = width > 2 ? 2 : width > 1 ? 1 : 0;
+    int rows = height > 2 ? 2 : height > 1 ? 1 : 0;
+    int[] multipliers = {2, 6, 18, 54};
+    ChannelLut[] quadrants = new ChannelLut[multipliers.length];
+    for (int q = 0; q < quadrants.length; q++) {
+      int i = multipliers[q];
+      quadrants[q] = ChannelLut.of(value -> value * i, value -> value * i * 4 / 3,
+              value -> value * i * 5 / 3);
+    }
+    TileExecutor.shared().forEachTile(columns * width, rows * height, (x0, y0, x1, y1) -> {
+      for (int y = y0; y < y1; y++) {
+        int qy = y / height;
+        int from = (y - qy * height) * width;
+        int to = y * dstWidth;
+        int x = x0;
+        while (x < x1) {
+          int qx = x / width;
+          int end = Math.min(x1, (qx + 1) * width);
+          ChannelLut lut = quadrants[qy * columns + qx];
+          int offset = from - qx * width;
+          for (; x < end; x++) {
+            dst[to + x] = lut.apply(pixels[offset + x]);
           }
         }
-        i = i * 3;
       }
-    }
+    });
     return newPic;
   }
 
   public Picture grayScale() {
-    return forEachPixel(c -> colorMakerGrayScale(c));
-  }
-
-  private Color colorMakerGrayScale(Color c) {
-    int avg = (c.getRed() + c.getGreen() + c.getBlue()) / 3;
-    return new Color(avg, avg, avg);
+    return forEachPixelRange(PixelKernels.preferred()::grayScale);
   }
 
+  /**
+   * Rotates the picture clockwise in a single pass. The angle is normalised modulo 360, and a
+   * started quarter turn counts as a whole one.
+   */
   public Picture rotate(int angle) {
-    Picture semiRotated = this;
-    while (angle > 0) {
-      semiRotated = semiRotated.helperRotate();
-      angle -= 90;
+    if (quarterTurns(angle) == 0) {
+      return this;
     }
-    return semiRotated;
+    return pipeline().rotate(angle).render();
   }
 
-  private Picture helperRotate() {
-    Picture newPic = new Picture(getHeight(), getWidth());
-    for (int y = 0; y < getHeight(); y++) {
-      List<Color> lst = new ArrayList<>();
-      for (int x = 0; x < getWidth(); x++) {
-        lst.add(getPixel(x, y));
-      }
-      for (int yy = 0; yy < getWidth(); yy++) {
-        newPic.setPixel(getHeight() - y - 1, yy, lst.get(yy));
-      }
-    }
-    return newPic;
+  /**
+   * Returns the number of clockwise quarter turns, from 0 to 3, that rotate(angle) performs.
+   */
+  static int quarterTurns(int angle) {
+    return Math.floorMod(-Math.floorDiv(-angle, 90), 4);
+  }
+
+  /**
+   * Mirrors the picture along its main diagonal, so the pixel at (x,y) moves to (y,x).
+   */
+  public Picture transpose() {
+    return pipeline().transpose().render();
+  }
+
+  /**
+   * Returns a picture with every pixel's channels mapped through the lookup tables.
+   */
+  public Picture applyLut(ChannelLut lut) {
+    return forEachPixelRange(lut::apply);
+  }
+
+  public Picture gamma(double gamma) {
+    return applyLut(ChannelLut.gamma(gamma));
+  }
+
+  public Picture brightness(int offset) {
+    return applyLut(ChannelLut.brightness(offset));
+  }
+
+  public Picture contrast(double factor) {
+    return applyLut(ChannelLut.contrast(factor));
   }
 
   public Picture makeDark(int magnitude) {
-    return forEachPixel(c -> new Color(c.getRed() / magnitude,
-            c.getGreen() / magnitude,
-            c.getBlue() / magnitude));
+    PixelKernels kernels = PixelKernels.preferred();
+    return forEachPixelRange((src, dst, from, to) -> kernels.makeDark(src, dst, from, to,
+            magnitude));
   }
 
   public Picture flip(String directionOfReflection) {
-    Picture newPic = new Picture(getWidth(), getHeight());
     switch (directionOfReflection) {
       case "V":
-        for (int y = 0; y < getHeight(); y++) {
-          List<Color> lst = new ArrayList<>();
-          for (int x = 0; x < getWidth(); x++) {
-            lst.add(getPixel(x, y));
-          }
-          for (int xx = 0; xx < getWidth(); xx++) {
-            newPic.setPixel(xx, getHeight() - y - 1, lst.get(xx));
-          }
-        }
-        break;
-
       case "H":
-        for (int x = 0; x < getWidth(); x++) {
-          List<Color> lst = new ArrayList<>();
-          for (int y = 0; y < getHeight(); y++) {
-            lst.add(getPixel(x, y));
-          }
-          for (int yy = 0; yy < getHeight(); yy++) {
-            newPic.setPixel(getWidth() - x - 1, yy, lst.get(yy));
-          }
-        }
-        break;
+        return pipeline().flip(directionOfReflection).render();
 
       default: System.out.println("Please type" + " V or H for direction of reflection");
     }
-    return newPic;
+    return new Picture(getWidth(), getHeight());
   }
 
   public static Picture blend(List<Picture> pictures) {
     int smallestWidth = pictures.stream().mapToInt(Picture::getWidth).min().orElse(0);
     int smallestHeight = pictures.stream().mapToInt(Picture::getHeight).min().orElse(0);
-    Picture newPic = new Picture(smallestWidth, smallestHeight);
-    for (int y = 0; y < newPic.getHeight(); y++) {
-      for (int x = 0; x < newPic.getWidth(); x++) {
-        int finalY = y;
-        int finalX = x;
-        int avgRed = pictures.stream()
-                .reduce(0, (prevSum, nextElement) -> prevSum + nextElement
-                                .getPixel(finalX, finalY).getRed(),
-                        Integer::sum) / pictures.size();
-        int avgGreen = pictures.stream()
-                .reduce(0, (prevSum, nextElement) -> prevSum + nextElement
-                                .getPixel(finalX, finalY).getGreen(),
-                        Integer::sum) / pictures.size();
-        int avgBlue = pictures.stream()
-                .reduce(0, (prevSum, nextElement) -> prevSum + nextElement
-                                .getPixel(finalX, finalY).getBlue(),
-                        Integer::sum) / pictures.size();
-        newPic.setPixel(x, y, new Color(avgRed, avgGreen, avgBlue));
-      }
-    }
-    return newPic;
+    BlendAccumulator accumulator = new BlendAccumulator(smallestWidth, smallestHeight);
+    pictures.forEach(accumulator::add);
+    return accumulator.result();
   }
 
   public Picture blur() {
-    Picture newPic = new Picture(getWidth(), getHeight());
-    for (int y = 0; y < getHeight(); y++) {
-      for (int x = 0; x < getWidth(); x++) {
-        int ir = 0;
-        int ig = 0;
-        int ib = 0;
-        if (x > 0 && y > 0 && y < getHeight() - 1 && x < getWidth() - 1) {
-          for (int yy = y - 1; yy < y + 2; yy++) {
-            for (int xx = x - 1; xx < x + 2; xx++) {
-              ir += getPixel(xx, yy).getRed();
-              ig += getPixel(xx, yy).getGreen();
-              ib += getPixel(xx, yy).getBlue();
-            }
-          }
-          int redAvg = ir / 9;
-          int blueAvg = ib / 9;
-          int greenAvg = ig / 9;
-          newPic.setPixel(x, y, new Color(redAvg, greenAvg, blueAvg));
-        } else {
-          newPic.setPixel(x, y, getPixel(x, y));
-        }
-      }
-    }
-    return newPic;
+    return blur(1);
   }
 
-  public static Picture mosaic(List<Picture> pictures, int tileSize) {
-    int smallestWidth = pictures.stream().mapToInt(Picture::getWidth).min().orElse(0);
-    int smallestHeight = pictures.stream().mapToInt(Picture::getHeight).min().orElse(0);
-    int i = 0;
-    int startIndexOfRow = 0;
-    while (smallestWidth % tileSize != 0) {
-      smallestWidth -= 1;
-    }
-    while (smallestHeight % tileSize != 0) {
-      smallestHeight -= 1;
-    }
-    Picture newPic = new Picture(smallestWidth, smallestHeight);
-    for (int ys = 0; ys < smallestHeight; ys += tileSize) {
-      for (int xs = 0; xs < smallestWidth; xs += tileSize) {
-        if (xs == 0) {
-          if (i == startIndexOfRow) {
-            i = (i + 1) % pictures.size();
-          }
-          startIndexOfRow = i;
-        }
-        if (i < (smallestWidth - 1) * (smallestHeight - 1)) {
-          for (int y = ys; y < ys + tileSize; y++) {
-            for (int x = xs; x < xs + tileSize; x++) {
-              newPic.setPixel(x, y, pictures.get(i).getPixel(x, y));
-            }
-          }
-        }
-        i = (i + 1) % pictures.size();
-      }
-    }
-    return newPic;
+  /**
+   * Replaces every pixel by the mean of the (2 * radius + 1) square around it. Pixels closer than
+   * radius to an edge are left unchanged.
+   */
+  public Picture blur(int radius) {
+    return blur(radius, BorderMode.IGNORE);
   }
 
-  private static List<Integer> listIndicesReplicator(int listSize,
-                                                     int smallestWidthMultipliedBySmallestHeight) {
-    List<Integer> lst = new ArrayList<>();
-    for (int i = 0; i < smallestWidthMultipliedBySmallestHeight; i++) {
-      for (int z = 0; z < listSize; z++) {
-        lst.add(z);
-      }
-    }
-    return lst;
+  /**
+   * Replaces every pixel by the mean of the (2 * radius + 1) square around it, treating samples
+   * outside the picture as given by the border mode. The cost per pixel is independent of radius.
+   */
+  public Picture blur(int radius, BorderMode mode) {
+    return BoxBlur.apply(this, radius, mode);
+  }
+
+  /**
+   * Convolves every channel with the kernel, leaving pixels whose window does not fit inside the
+   * picture unchanged.
+   */
+  public Picture convolve(Kernel kernel) {
+    return convolve(kernel, BorderMode.IGNORE);
+  }
+
+  /**
+   * Convolves every channel with the kernel, treating samples outside the picture as given by the
+   * border mode. Separable kernels are applied as two one-dimensional passes.
+   */
+  public Picture convolve(Kernel kernel, BorderMode mode) {
+    return Convolution.apply(this, kernel, mode);
+  }
+
+  /**
+   * Replaces every channel by the magnitude of its Sobel gradient, so edges are light and flat
+   * areas dark.
+   */
+  public Picture edges(BorderMode mode) {
+    return Convolution.edges(this, mode);
+  }
+
+  public static Picture mosaic(List<Picture> pictures, int tileSize) {
+    return Mosaic.fromPictures(pictures, tileSize);
   }
-}
\ No newline at end of file
+}
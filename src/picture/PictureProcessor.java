@@ -3,85 +3,766 @@ package picture;
 import static picture.KmeansClustering.imageLoad;
 import static picture.KmeansClustering.imageSave;
 
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 public class PictureProcessor {
+  private static final List<String> STREAMED =
+          List.of("invert", "grayscale", "make dark", "gamma", "brightness", "contrast", "flip",
+                  "blur");
+  // The commands that write one output, the last argument, from nothing but their arguments and
+  // input files, so their outputs can be cached.
+  private static final List<String> CACHEABLE =
+          List.of("invert", "grayscale", "andy warhol style", "blend", "blur", "rotate",
+                  "make dark", "gamma", "brightness", "contrast", "sharpen", "emboss", "edge",
+                  "gaussian", "convolve", "flip", "transpose", "mosaic", "compress", "pipeline",
+                  "convert");
+  // Options, each taking one value, that change how a command runs but not what it writes, so
+  // they are left out of its cache key.
+  private static final List<String> UNKEYED_OPTIONS = List.of("--threads", "--label-cache-bits");
 
+  /**
+   * Runs one command. Options before the command apply to any of them: "--png
+   * fast|balanced|small|default" chooses how PNG outputs are compressed (without it they are
+   * written by ImageIO as before, as outputs streamed in bands always are), and "--stats" prints
+   * the wall time, pixels, file bytes and allocations of each stage, and the k-means iterations,
+   * as one line of JSON on stderr when the command ends. "--cache dir" looks the output up in a
+   * ResultCache in that directory, copying it instead of running the command on a hit and storing
+   * it after running on a miss; "--cache-max-mb n" limits the cache's size, 1024 MB by default.
+   */
   public static void main(String[] args) {
+    execute(args, System.out, System.err);
+  }
+
+  /**
+   * Runs one command as main does, but prints what it would print on stdout and stderr, including
+   * the "--stats" line, to the given streams, so the daemon can send it back to its client. An
+   * unknown command throws IllegalArgumentException.
+   */
+  static void execute(String[] args, PrintStream out, PrintStream err) {
+    PngEncoder.Mode png = PngEncoder.Mode.DEFAULT;
+    boolean stats = false;
+    String cacheDirectory = null;
+    long cacheMaxBytes = ResultCache.DEFAULT_MAX_BYTES;
+    int first = 0;
+    for (; first < args.length && args[first].startsWith("--"); first++) {
+      if (args[first].equals("--stats")) {
+        stats = true;
+      } else if (args[first].equals("--png") && first + 1 < args.length) {
+        png = PngEncoder.Mode.valueOf(args[++first].toUpperCase());
+      } else if (args[first].equals("--cache") && first + 1 < args.length) {
+        cacheDirectory = args[++first];
+      } else if (args[first].equals("--cache-max-mb") && first + 1 < args.length) {
+        cacheMaxBytes = Long.valueOf(args[++first]) << 20;
+      } else {
+        throw new IllegalArgumentException("Unknown option '" + args[first] + "'");
+      }
+    }
+    String[] command = Arrays.copyOfRange(args, first, args.length);
+    ResultCache cache = null;
+    if (cacheDirectory != null) {
+      try {
+        cache = new ResultCache(Paths.get(cacheDirectory), cacheMaxBytes);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    if (!stats) {
+      runCached(command, png, cache, out, err);
+      return;
+    }
+    Instrumentation.Stats collected = Instrumentation.collect(command[0]);
+    try {
+      runCached(command, png, cache, out, err);
+    } finally {
+      Instrumentation.stopCollecting();
+      err.println(collected.toJson());
+    }
+  }
+
+  /**
+   * Returns the command of a PictureProcessor invocation, the first argument that is neither an
+   * option before it nor such an option's value, or null if there is none.
+   */
+  static String commandName(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--")) {
+        return args[i];
+      }
+      if (!args[i].equals("--stats")) {
+        i++;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Runs the command through the cache, if there is one and the command's output can be cached.
+   * A hit copies the stored output and skips the decode, transform and encode stages. Commands
+   * with --report always run, since what they print is part of their output.
+   */
+  private static void runCached(String[] args, PngEncoder.Mode png, ResultCache cache,
+                                PrintStream out, PrintStream err) {
+    if (cache == null || args.length < 3 || !CACHEABLE.contains(args[0])
+            || Arrays.asList(args).contains("--report")) {
+      run(args, png, out, err);
+      return;
+    }
+    Path output = Paths.get(args[args.length - 1]);
+    try {
+      String key;
+      try (Instrumentation.Stage stage = Instrumentation.stage("cache")) {
+        key = cache.key(cachedOperation(args, png), cachedInputs(args));
+        if (cache.restore(key, output)) {
+          stage.bytes(output.toString());
+          return;
+        }
+      }
+      run(args, png, out, err);
+      cache.store(key, output);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the input files of a cacheable command, the arguments from firstInput to the output.
+   */
+  private static List<Path> cachedInputs(String[] args) {
+    List<Path> inputs = new ArrayList<>();
+    for (int i = firstInput(args); i < args.length - 1; i++) {
+      inputs.add(Paths.get(args[i]));
+    }
+    return inputs;
+  }
+
+  /**
+   * Returns what besides its inputs decides a cacheable command's output: its name and
+   * parameters other than UNKEYED_OPTIONS, the output's extension, which chooses its format, and
+   * the PNG mode.
+   */
+  private static List<String> cachedOperation(String[] args, PngEncoder.Mode png) {
+    List<String> operation = new ArrayList<>();
+    int first = firstInput(args);
+    for (int i = 0; i < first; i++) {
+      if (UNKEYED_OPTIONS.contains(args[i])) {
+        i++;
+      } else {
+        operation.add(args[i]);
+      }
+    }
+    String output = args[args.length - 1];
+    operation.add(output.substring(output.lastIndexOf('.') + 1).toLowerCase());
+    operation.add(png.name());
+    return operation;
+  }
+
+  /**
+   * Returns the index of a cacheable command's first input file: blend and mosaic read every
+   * argument after the operation's parameters, and the rest read the one before the output.
+   */
+  private static int firstInput(String[] args) {
+    switch (args[0]) {
+      case "blend":
+        return 1;
+
+      case "mosaic":
+        return 2;
+
+      default:
+        return args.length - 2;
+    }
+  }
+
+  private static void run(String[] args, PngEncoder.Mode png, PrintStream out, PrintStream err) {
+    if (runMapped(args) || runStreamed(args)) {
+      return;
+    }
     switch (args[0]) {
       case "invert":
         Picture original = new Picture(args[1]);
-        Picture inverted = original.invert();
-        inverted.saveAs(args[2]);
+        Picture inverted = transform(original, Picture::invert);
+        inverted.saveAs(args[2], png);
         break;
 
       case "grayscale":
         original = new Picture(args[1]);
-        Picture grayScaled = original.grayScale();
-        grayScaled.saveAs(args[2]);
+        Picture grayScaled = transform(original, Picture::grayScale);
+        grayScaled.saveAs(args[2], png);
         break;
 
       case "andy warhol style":
         original = new Picture(args[1]);
-        Picture andyWarholStyled = original.andyWarholStyle();
-        andyWarholStyled.saveAs(args[2]);
+        Picture andyWarholStyled = transform(original, Picture::andyWarholStyle);
+        andyWarholStyled.saveAs(args[2], png);
         break;
 
       case "blend":
-        List<Picture> lst = new ArrayList<>();
-        for (int i = 1; i < args.length - 1; i++) {
-          Picture picture = new Picture(args[i]);
-          lst.add(picture);
-        }
-        Picture blended = Picture.blend(lst);
-        blended.saveAs(args[args.length - 1]);
+        List<String> inputs = Arrays.asList(args).subList(1, args.length - 1);
+        Picture blended = transform(() -> BlendAccumulator.blendFiles(inputs));
+        blended.saveAs(args[args.length - 1], png);
         break;
 
       case "blur":
-        original = new Picture(args[1]);
-        Picture blurred = original.blur();
-        blurred.saveAs(args[2]);
+        original = new Picture(args[args.length - 2]);
+        Picture blurred;
+        if (args.length == 3) {
+          blurred = transform(original, Picture::blur);
+        } else if (args.length == 4) {
+          blurred = transform(original, picture -> picture.blur(Integer.valueOf(args[1])));
+        } else {
+          blurred = transform(original, picture -> picture.blur(Integer.valueOf(args[1]),
+                  BorderMode.valueOf(args[2].toUpperCase())));
+        }
+        blurred.saveAs(args[args.length - 1], png);
         break;
 
       case "rotate":
         original = new Picture(args[2]);
-        Picture rotated = original.rotate(Integer.valueOf(args[1]));
-        rotated.saveAs(args[3]);
+        Picture rotated = transform(original, picture -> picture.rotate(Integer.valueOf(args[1])));
+        rotated.saveAs(args[3], png);
         break;
 
       case "make dark":
         original = new Picture(args[2]);
-        Picture darkerVersion = original.makeDark(Integer.valueOf(args[1]));
-        darkerVersion.saveAs(args[3]);
+        Picture darkerVersion =
+                transform(original, picture -> picture.makeDark(Integer.valueOf(args[1])));
+        darkerVersion.saveAs(args[3], png);
+        break;
+
+      case "gamma":
+      case "brightness":
+      case "contrast":
+        original = new Picture(args[2]);
+        Picture adjusted = transform(original, pointOperation(args));
+        adjusted.saveAs(args[3], png);
+        break;
+
+      case "sharpen":
+      case "emboss":
+      case "edge":
+      case "gaussian":
+      case "convolve":
+        original = new Picture(args[args.length - 2]);
+        Picture convolved = transform(original, convolution(args));
+        convolved.saveAs(args[args.length - 1], png);
         break;
 
       case "flip":
         original = new Picture(args[2]);
-        Picture flipped = original.flip(args[1]);
-        flipped.saveAs(args[3]);
+        Picture flipped = transform(original, picture -> picture.flip(args[1]));
+        flipped.saveAs(args[3], png);
+        break;
+
+      case "transpose":
+        original = new Picture(args[1]);
+        Picture transposed = transform(original, Picture::transpose);
+        transposed.saveAs(args[2], png);
         break;
 
       case "mosaic":
-        lst = new ArrayList<>();
-        for (int i = 2; i < args.length - 1; i++) {
-          Picture picture = new Picture(args[i]);
-          lst.add(picture);
-        }
-        Picture mosaic = Picture.mosaic(lst, Integer.valueOf(args[1]));
-        mosaic.saveAs(args[args.length - 1]);
+        List<String> tiles = Arrays.asList(args).subList(2, args.length - 1);
+        Picture mosaic = transform(() -> Mosaic.fromFiles(tiles, Integer.valueOf(args[1])));
+        mosaic.saveAs(args[args.length - 1], png);
         break;
 
       case "compress":
-        KmeansClustering kmeansclustering = new KmeansClustering();
-        int kvalue = 60;
-        BufferedImage imageDst = kmeansclustering.evaluate(imageLoad(args[1]), kvalue);
-        imageSave(args[2], imageDst);
+        compress(args, png, out);
+        break;
+
+      case "pipeline":
+        original = new Picture(args[args.length - 2]);
+        Picture rendered = transform(original,
+                picture -> appendOperations(picture.pipeline(), args, 1, args.length - 2).render());
+        rendered.saveAs(args[args.length - 1], png);
+        break;
+
+      case "batch":
+        batch(args, png, out, err);
+        break;
+
+      case "convert":
+        new Picture(args[1]).saveAs(args[2], png);
+        break;
+
+      case "daemon":
+        daemon(args);
+        break;
+
+      case "cache-stats":
+        try {
+          out.println(new ResultCache(Paths.get(args[1]), ResultCache.DEFAULT_MAX_BYTES).stats());
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        break;
+
+      case "digest":
+        for (String input : Arrays.asList(args).subList(1, args.length)) {
+          out.println(new Picture(input).contentDigest() + "  " + input);
+        }
         break;
 
-      default: System.out.println("Arguments for the program were incorrectly typed");
+      default:
+        throw new IllegalArgumentException("Arguments for the program were incorrectly typed");
+    }
+  }
+
+  /**
+   * Runs the point operations, flip and blur out of core when both the input and the output are
+   * raw raster files, streaming bands of rows between the two mappings. Returns false, doing
+   * nothing, for any other invocation.
+   */
+  private static boolean runMapped(String[] args) {
+    if (!bandwise(args) || !RawRaster.isRaw(args[args.length - 2])
+            || !RawRaster.isRaw(args[args.length - 1])) {
+      return false;
+    }
+    String output = args[args.length - 1];
+    if (sameFile(args[args.length - 2], output)) {
+      // Creating the output would truncate the input while it is mapped.
+      return false;
+    }
+    MappedPicture result;
+    try (Instrumentation.Stage stage = Instrumentation.stage("mapped");
+         MappedPicture source = MappedPicture.open(args[args.length - 2])) {
+      stage.bytes(args[args.length - 2]).pixels((long) source.getWidth() * source.getHeight());
+      switch (args[0]) {
+        case "flip":
+          result = args[1].equals("V") ? source.flipVertical(output)
+                  : source.mapRows(band -> band.flip("H"), output);
+          break;
+
+        case "blur":
+          int radius = args.length > 3 ? Integer.valueOf(args[1]) : 1;
+          BorderMode mode = args.length > 4 ? BorderMode.valueOf(args[2].toUpperCase())
+                  : BorderMode.IGNORE;
+          result = source.blur(radius, mode, output);
+          break;
+
+        default:
+          result = source.mapRows(pointOperation(args), output);
+      }
+      result.close();
+      stage.bytes(output);
+    }
+    return true;
+  }
+
+  /**
+   * Runs the point operations, flip and blur in bands of rows when the input has at least
+   * BandStream.STREAM_PIXELS pixels, so the whole picture is never on the heap. Returns false,
+   * doing nothing, for smaller inputs and any other invocation, including blurs with wrapped
+   * borders, which need the whole picture.
+   */
+  private static boolean runStreamed(String[] args) {
+    if (!bandwise(args) || args[0].equals("blur") && args.length > 4
+            && BorderMode.valueOf(args[2].toUpperCase()) == BorderMode.WRAP) {
+      return false;
+    }
+    String input = args[args.length - 2];
+    String output = args[args.length - 1];
+    if (!Files.isRegularFile(Paths.get(input)) || sameFile(input, output)) {
+      return false;
+    }
+    Dimension size = RawRaster.isRaw(input) ? null : ImageFiles.dimensions(input);
+    if (size != null && (long) size.width * size.height < BandStream.STREAM_PIXELS) {
+      return false;
+    }
+    try (Instrumentation.Stage stage = Instrumentation.stage("stream")) {
+      stage.bytes(input).pixels(size == null ? 0 : (long) size.width * size.height);
+      switch (args[0]) {
+        case "flip":
+          if (args[1].equals("V")) {
+            BandStream.flipVertical(input, output);
+          } else {
+            BandStream.transform(input, output, 0, BorderMode.IGNORE, band -> band.flip("H"));
+          }
+          break;
+
+        case "blur":
+          int radius = args.length > 3 ? Integer.valueOf(args[1]) : 1;
+          BorderMode mode = args.length > 4 ? BorderMode.valueOf(args[2].toUpperCase())
+                  : BorderMode.IGNORE;
+          BandStream.transform(input, output, radius, mode, band -> band.blur(radius, mode));
+          break;
+
+        default:
+          BandStream.transform(input, output, 0, BorderMode.IGNORE, pointOperation(args));
+      }
+      stage.bytes(output);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the operation of a command that maps each pixel on its own: invert, grayscale, or
+   * make dark, gamma, brightness or contrast with its parameter in args[1]. Returns null for any
+   * other command.
+   */
+  private static UnaryOperator<Picture> pointOperation(String[] args) {
+    switch (args[0]) {
+      case "invert":
+        return Picture::invert;
+
+      case "grayscale":
+        return Picture::grayScale;
+
+      case "make dark":
+        int magnitude = Integer.valueOf(args[1]);
+        return picture -> picture.makeDark(magnitude);
+
+      case "gamma":
+        ChannelLut gamma = ChannelLut.gamma(Double.parseDouble(args[1]));
+        return picture -> picture.applyLut(gamma);
+
+      case "brightness":
+        ChannelLut brightness = ChannelLut.brightness(Integer.valueOf(args[1]));
+        return picture -> picture.applyLut(brightness);
+
+      case "contrast":
+        ChannelLut contrast = ChannelLut.contrast(Double.parseDouble(args[1]));
+        return picture -> picture.applyLut(contrast);
+
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the operation of a convolution command, each with an optional border mode before
+   * the input and output: "sharpen", "emboss", "edge" (the Sobel gradient magnitude), "gaussian
+   * sigma", or "convolve WxH w1,w2,..." for any kernel given row by row. Integer weights are
+   * divided by their sum, or by 1 if that is not positive; float weights are used as they are.
+   */
+  private static UnaryOperator<Picture> convolution(String[] args) {
+    int parameters = args[0].equals("gaussian") ? 1 : args[0].equals("convolve") ? 2 : 0;
+    BorderMode mode = args.length > parameters + 3
+            ? BorderMode.valueOf(args[parameters + 1].toUpperCase()) : BorderMode.IGNORE;
+    switch (args[0]) {
+      case "sharpen":
+        return picture -> picture.convolve(Kernel.sharpen(), mode);
+
+      case "emboss":
+        return picture -> picture.convolve(Kernel.emboss(), mode);
+
+      case "edge":
+        return picture -> picture.edges(mode);
+
+      case "gaussian":
+        Kernel gaussian = Kernel.gaussian(Double.parseDouble(args[1]));
+        return picture -> picture.convolve(gaussian, mode);
+
+      default:
+        Kernel kernel = parseKernel(args[1], args[2]);
+        return picture -> picture.convolve(kernel, mode);
+    }
+  }
+
+  private static Kernel parseKernel(String size, String weights) {
+    int separator = size.indexOf('x');
+    int width = Integer.parseInt(size.substring(0, separator));
+    int height = Integer.parseInt(size.substring(separator + 1));
+    String[] values = weights.split(",");
+    if (weights.contains(".")) {
+      float[] floats = new float[values.length];
+      for (int i = 0; i < values.length; i++) {
+        floats[i] = Float.parseFloat(values[i].trim());
+      }
+      return Kernel.of(width, height, floats, 0);
+    }
+    int[] ints = new int[values.length];
+    int sum = 0;
+    for (int i = 0; i < values.length; i++) {
+      ints[i] = Integer.parseInt(values[i].trim());
+      sum += ints[i];
+    }
+    return Kernel.of(width, height, ints, Math.max(1, sum), 0);
+  }
+
+  /**
+   * Returns whether the command is one that can run band by band: a point operation, a
+   * horizontal or vertical flip, or blur.
+   */
+  private static boolean bandwise(String[] args) {
+    return args.length >= 3 && STREAMED.contains(args[0])
+            && (!args[0].equals("flip") || args[1].equals("V") || args[1].equals("H"));
+  }
+
+  /**
+   * Runs the operation as the transform stage of the command.
+   */
+  private static Picture transform(Picture input, UnaryOperator<Picture> operation) {
+    return transform(() -> operation.apply(input));
+  }
+
+  private static Picture transform(Supplier<Picture> operation) {
+    try (Instrumentation.Stage stage = Instrumentation.stage("transform")) {
+      Picture result = operation.get();
+      stage.pixels((long) result.getWidth() * result.getHeight());
+      return result;
+    }
+  }
+
+  private static boolean sameFile(String first, String second) {
+    try {
+      return Files.exists(Paths.get(second))
+              && Files.isSameFile(Paths.get(first), Paths.get(second));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Runs "batch [options] operations... input output", applying the pipeline operations to every
+   * file of the input directory, or every file matching the input glob, and writing the results
+   * as PNG into the output directory. The options are "--io-threads n" for the decode and encode
+   * stages, "--cpu-threads n" for the transform stage, and "--queue n" for the number of pictures
+   * that may wait between two stages. Files that fail are reported on stderr and skipped; the
+   * throughput is printed at the end.
+   */
+  private static void batch(String[] args, PngEncoder.Mode png, PrintStream out,
+                            PrintStream err) {
+    int ioThreads = 2;
+    int cpuThreads = TileExecutor.shared().getParallelism();
+    int queueCapacity = BatchProcessor.DEFAULT_QUEUE_CAPACITY;
+    int from = 1;
+    for (; from < args.length - 2 && args[from].startsWith("--"); from += 2) {
+      switch (args[from]) {
+        case "--io-threads":
+          ioThreads = Integer.valueOf(args[from + 1]);
+          break;
+
+        case "--cpu-threads":
+          cpuThreads = Integer.valueOf(args[from + 1]);
+          break;
+
+        case "--queue":
+          queueCapacity = Integer.valueOf(args[from + 1]);
+          break;
+
+        default:
+          throw new IllegalArgumentException("Unknown batch option '" + args[from] + "'");
+      }
+    }
+    int first = from;
+    // Checks the operations once up front rather than failing every file.
+    appendOperations(new Picture(1, 1).pipeline(), args, first, args.length - 2);
+    BatchProcessor batch = new BatchProcessor(ioThreads, cpuThreads, queueCapacity, err);
+    batch.setPngMode(png);
+    BatchProcessor.Report report = batch.run(BatchProcessor.inputs(args[args.length - 2]),
+            Paths.get(args[args.length - 1]),
+            picture -> transform(picture,
+                    p -> appendOperations(p.pipeline(), args, first, args.length - 2).render()));
+    out.println(report);
+  }
+
+  /**
+   * Runs "daemon [--threads n] address", serving requests on a loopback port or Unix-domain
+   * socket path until a client sends "shutdown". See ProcessingDaemon.
+   */
+  private static void daemon(String[] args) {
+    int threads = args.length > 3 && args[1].equals("--threads")
+            ? Integer.valueOf(args[2]) : TileExecutor.shared().getParallelism();
+    try {
+      new ProcessingDaemon(args[args.length - 1], threads).serve();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Runs "compress [options] input output". The options are "--max-iterations n",
+   * "--threshold t" (the largest centre movement at which k-means counts as converged),
+   * "--engine brute-force|hamerly", "--threads n" for the number of threads k-means runs on, and
+   * "--report", which prints the distances measured and skipped in each assignment pass.
+   * "--mini-batch b" switches to mini-batch k-means over random batches of b pixels, with
+   * "--max-iterations" as its iteration budget and "--seed s" choosing the samples; its output
+   * pass labels pixels through a LabelCache of 2^n slots set by "--label-cache-bits n" (0 turns it
+   * off), and --report prints that cache's hits and misses instead. The output is an
+   * indexed-colour PNG unless "--rgb" is given.
+   */
+  private static void compress(String[] args, PngEncoder.Mode png, PrintStream out) {
+    int kvalue = 60;
+    int maxIterations = KmeansClustering.DEFAULT_MAX_ITERATIONS;
+    int threshold = KmeansClustering.DEFAULT_CONVERGENCE_THRESHOLD;
+    KmeansClustering.Engine engine = KmeansClustering.Engine.HAMERLY;
+    TileExecutor executor = TileExecutor.shared();
+    boolean report = false;
+    int batchSize = 0;
+    long seed = MiniBatchKmeans.DEFAULT_SEED;
+    boolean indexed = true;
+    int labelCacheBits = LabelCache.DEFAULT_BITS;
+    for (int i = 1; i < args.length - 2; i += 2) {
+      switch (args[i]) {
+        case "--mini-batch":
+          batchSize = Integer.valueOf(args[i + 1]);
+          break;
+
+        case "--label-cache-bits":
+          labelCacheBits = Integer.valueOf(args[i + 1]);
+          break;
+
+        case "--seed":
+          seed = Long.valueOf(args[i + 1]);
+          break;
+
+        case "--threads":
+          executor = new TileExecutor(Integer.valueOf(args[i + 1]));
+          break;
+
+        case "--engine":
+          engine = KmeansClustering.Engine.valueOf(args[i + 1].toUpperCase().replace('-', '_'));
+          break;
+
+        case "--report":
+          report = true;
+          i--;
+          break;
+
+        case "--rgb":
+          indexed = false;
+          i--;
+          break;
+
+        case "--max-iterations":
+          maxIterations = Integer.valueOf(args[i + 1]);
+          break;
+
+        case "--threshold":
+          threshold = Integer.valueOf(args[i + 1]);
+          break;
+
+        default:
+          throw new IllegalArgumentException("Unknown compress option '" + args[i] + "'");
+      }
+    }
+    if (batchSize > 0) {
+      MiniBatchKmeans miniBatch = new MiniBatchKmeans(batchSize, maxIterations, seed, executor);
+      miniBatch.setLabelCacheBits(labelCacheBits);
+      BufferedImage imageSrc = imageLoad(args[args.length - 2]);
+      BufferedImage imageDst;
+      try (Instrumentation.Stage stage = Instrumentation.stage("transform")) {
+        imageDst = indexed ? miniBatch.evaluateIndexed(imageSrc, kvalue)
+                : miniBatch.evaluate(imageSrc, kvalue);
+        stage.pixels((long) imageDst.getWidth() * imageDst.getHeight());
+      }
+      imageSave(args[args.length - 1], imageDst, png);
+      if (report) {
+        out.println("label cache: " + miniBatch.getLabelCacheHits() + " hits, "
+                + miniBatch.getLabelCacheMisses() + " misses");
+      }
+      return;
+    }
+    KmeansClustering kmeansclustering =
+            new KmeansClustering(maxIterations, threshold, engine, executor);
+    BufferedImage imageSrc = imageLoad(args[args.length - 2]);
+    BufferedImage imageDst;
+    try (Instrumentation.Stage stage = Instrumentation.stage("transform")) {
+      imageDst = indexed ? kmeansclustering.evaluateIndexed(imageSrc, kvalue)
+              : kmeansclustering.evaluate(imageSrc, kvalue);
+      stage.pixels((long) imageDst.getWidth() * imageDst.getHeight());
+    }
+    imageSave(args[args.length - 1], imageDst, png);
+    if (report) {
+      long[] measured = kmeansclustering.getDistanceEvaluations();
+      long[] skipped = kmeansclustering.getSkippedDistanceEvaluations();
+      for (int pass = 0; pass < measured.length; pass++) {
+        out.println("pass " + pass + ": measured " + measured[pass] + " distances, skipped "
+                + skipped[pass]);
+      }
+    }
+  }
+
+  /**
+   * Records the operations listed in args[from, to) onto the given pipeline. Each operation is
+   * written as for a single invocation, followed by its parameter if it takes one, e.g.
+   * "grayscale" "make dark" "2" "invert" "flip" "H".
+   *
+   * @throws IllegalArgumentException if an operation is unknown or cannot be chained.
+   */
+  static Pipeline appendOperations(Pipeline pipeline, String[] args, int from, int to) {
+    int i = from;
+    while (i < to) {
+      String operation = args[i++];
+      switch (operation) {
+        case "invert":
+          pipeline.invert();
+          break;
+
+        case "grayscale":
+          pipeline.grayScale();
+          break;
+
+        case "andy warhol style":
+          pipeline.andyWarholStyle();
+          break;
+
+        case "blur":
+          pipeline.blur();
+          break;
+
+        case "sharpen":
+          pipeline.convolve(Kernel.sharpen());
+          break;
+
+        case "emboss":
+          pipeline.convolve(Kernel.emboss());
+          break;
+
+        case "edge":
+          pipeline.barrier(picture -> picture.edges(BorderMode.IGNORE));
+          break;
+
+        case "gaussian":
+          pipeline.convolve(Kernel.gaussian(Double.parseDouble(args[i++])));
+          break;
+
+        case "rotate":
+          pipeline.rotate(Integer.valueOf(args[i++]));
+          break;
+
+        case "make dark":
+          pipeline.makeDark(Integer.valueOf(args[i++]));
+          break;
+
+        case "gamma":
+          pipeline.gamma(Double.parseDouble(args[i++]));
+          break;
+
+        case "brightness":
+          pipeline.brightness(Integer.valueOf(args[i++]));
+          break;
+
+        case "contrast":
+          pipeline.contrast(Double.parseDouble(args[i++]));
+          break;
+
+        case "flip":
+          pipeline.flip(args[i++]);
+          break;
+
+        case "transpose":
+          pipeline.transpose();
+          break;
+
+        default:
+          throw new IllegalArgumentException("Operation '" + operation + "' cannot be chained");
+      }
     }
+    return pipeline;
   }
 }
 
@@ -0,0 +1,226 @@
+package picture;
+
+import java.util.function.IntUnaryOperator;
+import java.util.function.UnaryOperator;
+
+/**
+ * A lazily evaluated chain of operations on a picture. Consecutive per-pixel operations are fused
+ * into a single colour function, consecutive per-channel ones into a single lookup table, and
+ * flips and rotations are folded into one coordinate mapping, so a run of such operations is
+ * rendered in a single pass without intermediate pictures.
+ * Neighbourhood operations such as blur act as barriers: the pending run is rendered first.
+ */
+public class Pipeline {
+
+  private static final int BLOCK_SIZE = 64;
+
+  private Picture source;
+
+  // Output (x,y) reads source (m00 * x + m01 * y + tx, m10 * x + m11 * y + ty).
+  private int m00;
+  private int m01;
+  private int m10;
+  private int m11;
+  private int tx;
+  private int ty;
+  private int width;
+  private int height;
+
+  private IntUnaryOperator colour;
+  // Per-channel operations after colour, composed into one table.
+  private ChannelLut lut;
+
+  Pipeline(Picture source) {
+    reset(source);
+  }
+
+  private void reset(Picture picture) {
+    source = picture;
+    m00 = 1;
+    m01 = 0;
+    m10 = 0;
+    m11 = 1;
+    tx = 0;
+    ty = 0;
+    width = picture.getWidth();
+    height = picture.getHeight();
+    colour = null;
+    lut = null;
+  }
+
+  public Pipeline invert() {
+    return lut(ChannelLut.invert());
+  }
+
+  public Pipeline grayScale() {
+    return point(rgb -> {
+      int avg = (Picture.red(rgb) + Picture.green(rgb) + Picture.blue(rgb)) / 3;
+      return Picture.pack(avg, avg, avg);
+    });
+  }
+
+  public Pipeline makeDark(int magnitude) {
+    return lut(ChannelLut.darken(magnitude));
+  }
+
+  public Pipeline gamma(double gamma) {
+    return lut(ChannelLut.gamma(gamma));
+  }
+
+  public Pipeline brightness(int offset) {
+    return lut(ChannelLut.brightness(offset));
+  }
+
+  public Pipeline contrast(double factor) {
+    return lut(ChannelLut.contrast(factor));
+  }
+
+  public Pipeline flip(String directionOfReflection) {
+    switch (directionOfReflection) {
+      case "V":
+        return remap(1, 0, 0, 0, -1, height - 1, width, height);
+      case "H":
+        return remap(-1, 0, width - 1, 0, 1, 0, width, height);
+      default:
+        return barrier(picture -> picture.flip(directionOfReflection));
+    }
+  }
+
+  public Pipeline rotate(int angle) {
+    switch (Picture.quarterTurns(angle)) {
+      case 1:
+        return remap(0, 1, 0, -1, 0, height - 1, height, width);
+      case 2:
+        return remap(-1, 0, width - 1, 0, -1, height - 1, width, height);
+      case 3:
+        return remap(0, -1, width - 1, 1, 0, 0, height, width);
+      default:
+        return this;
+    }
+  }
+
+  /**
+   * Mirrors the picture along its main diagonal, so (x,y) moves to (y,x).
+   */
+  public Pipeline transpose() {
+    return remap(0, 1, 0, 1, 0, 0, height, width);
+  }
+
+  public Pipeline blur() {
+    return barrier(Picture::blur);
+  }
+
+  public Pipeline convolve(Kernel kernel) {
+    return barrier(picture -> picture.convolve(kernel));
+  }
+
+  public Pipeline andyWarholStyle() {
+    return barrier(Picture::andyWarholStyle);
+  }
+
+  /**
+   * Appends a per-pixel operation on packed 0xRRGGBB values to the pending run.
+   */
+  public Pipeline point(IntUnaryOperator transform) {
+    IntUnaryOperator pending = pendingColour();
+    colour = pending == null ? transform : pending.andThen(transform);
+    lut = null;
+    return this;
+  }
+
+  /**
+   * Appends a per-channel operation to the pending run. Consecutive ones are composed into a
+   * single table, so they cost one lookup per channel however many there are.
+   */
+  public Pipeline lut(ChannelLut next) {
+    lut = lut == null ? next : lut.andThen(next);
+    return this;
+  }
+
+  /**
+   * Returns the pending colour function with the pending tables applied after it, or null if
+   * there is neither.
+   */
+  private IntUnaryOperator pendingColour() {
+    if (lut == null) {
+      return colour;
+    }
+    IntUnaryOperator lookup = lut::apply;
+    return colour == null ? lookup : colour.andThen(lookup);
+  }
+
+  /**
+   * Renders the pending run and applies an arbitrary whole-picture operation to the result.
+   */
+  public Pipeline barrier(UnaryOperator<Picture> operation) {
+    reset(operation.apply(render()));
+    return this;
+  }
+
+  /**
+   * Composes a new coordinate mapping, given for the current output, onto the pending one. The
+   * new mapping sends (x,y) in a newWidth x newHeight output to (a*x + b*y + c, d*x + e*y + f).
+   */
+  private Pipeline remap(int a, int b, int c, int d, int e, int f, int newWidth, int newHeight) {
+    int n00 = m00 * a + m01 * d;
+    int n01 = m00 * b + m01 * e;
+    int n10 = m10 * a + m11 * d;
+    int n11 = m10 * b + m11 * e;
+    tx = m00 * c + m01 * f + tx;
+    ty = m10 * c + m11 * f + ty;
+    m00 = n00;
+    m01 = n01;
+    m10 = n10;
+    m11 = n11;
+    width = newWidth;
+    height = newHeight;
+    return this;
+  }
+
+  private boolean isIdentityMapping() {
+    return m00 == 1 && m01 == 0 && m10 == 0 && m11 == 1 && tx == 0 && ty == 0;
+  }
+
+  /**
+   * Evaluates every recorded operation and returns the resulting picture. The source picture is
+   * never modified; if nothing is pending, the current picture itself is returned.
+   */
+  public Picture render() {
+    if (colour == null && lut == null && isIdentityMapping()) {
+      return source;
+    }
+    Picture output = new Picture(width, height);
+    int[] src = source.raster();
+    int[] dst = output.writableRaster();
+    int sourceWidth = source.getWidth();
+    IntUnaryOperator transform = pendingColour();
+    int step = m00 + m10 * sourceWidth;
+    int rowStep = m01 + m11 * sourceWidth;
+    int origin = tx + ty * sourceWidth;
+    int outputWidth = width;
+    TileExecutor.TileKernel kernel = (x0, y0, x1, y1) -> {
+      for (int y = y0; y < y1; y++) {
+        int from = origin + y * rowStep + x0 * step;
+        int to = y * outputWidth + x0;
+        int end = y * outputWidth + x1;
+        if (transform == null) {
+          for (; to < end; to++, from += step) {
+            dst[to] = src[from];
+          }
+        } else {
+          for (; to < end; to++, from += step) {
+            dst[to] = transform.applyAsInt(src[from]) & 0xffffff;
+          }
+        }
+      }
+    };
+    if (m00 == 0) {
+      // Output rows are read down source columns: square blocks keep both sides in cache.
+      TileExecutor.shared().forEachTile(width, height, BLOCK_SIZE, BLOCK_SIZE, kernel);
+    } else {
+      TileExecutor.shared().forEachTile(width, height, kernel);
+    }
+    reset(output);
+    return output;
+  }
+}
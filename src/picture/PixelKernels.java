@@ -0,0 +1,150 @@
+package picture;
+
+/**
+ * The per-pixel arithmetic of invert, grayscale, make dark and blend, over index ranges of packed
+ * 0x00RRGGBB rasters, and the multiply-adds of convolution over channel planes. There are two
+ * implementations with identical output: a scalar one, and one built on the incubating Vector API
+ * that handles a whole vector of pixels per instruction.
+ *
+ * <p>The vector kernels are used when the JVM was started with "--add-modules
+ * jdk.incubator.vector" and its preferred vector holds at least four ints; otherwise, or when the
+ * system property "picture.kernels" is "scalar", the scalar kernels are.
+ */
+abstract class PixelKernels {
+  private static final PixelKernels SCALAR = new Scalar();
+  private static final PixelKernels VECTOR = loadVector();
+  private static final PixelKernels PREFERRED =
+          VECTOR != null && !"scalar".equals(System.getProperty("picture.kernels"))
+                  ? VECTOR : SCALAR;
+
+  static PixelKernels preferred() {
+    return PREFERRED;
+  }
+
+  static PixelKernels scalar() {
+    return SCALAR;
+  }
+
+  /**
+   * Returns the vector kernels, or null if the Vector API is not available or not worth using.
+   */
+  static PixelKernels vector() {
+    return VECTOR;
+  }
+
+  private static PixelKernels loadVector() {
+    if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+      return null;
+    }
+    try {
+      return VectorPixelKernels.isWorthwhile() ? new VectorPixelKernels() : null;
+    } catch (LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes the inverse of src[from, to) to dst[from, to).
+   */
+  abstract void invert(int[] src, int[] dst, int from, int to);
+
+  /**
+   * Writes the grey of src[from, to), the truncated average of the three channels, to
+   * dst[from, to).
+   */
+  abstract void grayScale(int[] src, int[] dst, int from, int to);
+
+  /**
+   * Writes src[from, to) with every channel divided by the magnitude to dst[from, to).
+   *
+   * @throws ArithmeticException if the magnitude is 0.
+   */
+  abstract void makeDark(int[] src, int[] dst, int from, int to, int magnitude);
+
+  /**
+   * Adds the channels of the to - from pixels starting at src[srcFrom] to the totals in
+   * [from, to) of red, green and blue.
+   */
+  abstract void accumulate(int[] src, int srcFrom, int[] red, int[] green, int[] blue, int from,
+                           int to);
+
+  /**
+   * Writes the totals in [from, to) of red, green and blue, each divided by the count, to
+   * dst[from, to).
+   */
+  abstract void average(int[] red, int[] green, int[] blue, int count, int[] dst, int from,
+                        int to);
+
+  /**
+   * Adds weight * values[offset + i] to sums[i] for every i in [from, to).
+   */
+  abstract void multiplyAdd(int[] sums, int[] values, int offset, int weight, int from, int to);
+
+  /**
+   * Adds weight * values[offset + i] to sums[i] for every i in [from, to), in float.
+   */
+  abstract void multiplyAdd(float[] sums, float[] values, int offset, float weight, int from,
+                            int to);
+
+  static final class Scalar extends PixelKernels {
+
+    private Scalar() { }
+
+    @Override
+    void invert(int[] src, int[] dst, int from, int to) {
+      for (int i = from; i < to; i++) {
+        dst[i] = (src[i] ^ 0xffffff) & 0xffffff;
+      }
+    }
+
+    @Override
+    void grayScale(int[] src, int[] dst, int from, int to) {
+      for (int i = from; i < to; i++) {
+        int rgb = src[i];
+        int avg = (Picture.red(rgb) + Picture.green(rgb) + Picture.blue(rgb)) / 3;
+        dst[i] = Picture.pack(avg, avg, avg);
+      }
+    }
+
+    /**
+     * Looks the quotients up in a table of the 256 possible ones rather than dividing three
+     * times per pixel.
+     */
+    @Override
+    void makeDark(int[] src, int[] dst, int from, int to, int magnitude) {
+      ChannelLut.darken(magnitude).apply(src, dst, from, to);
+    }
+
+    @Override
+    void accumulate(int[] src, int srcFrom, int[] red, int[] green, int[] blue, int from,
+                    int to) {
+      for (int i = from, j = srcFrom; i < to; i++, j++) {
+        int rgb = src[j];
+        red[i] += Picture.red(rgb);
+        green[i] += Picture.green(rgb);
+        blue[i] += Picture.blue(rgb);
+      }
+    }
+
+    @Override
+    void average(int[] red, int[] green, int[] blue, int count, int[] dst, int from, int to) {
+      for (int i = from; i < to; i++) {
+        dst[i] = Picture.pack(red[i] / count, green[i] / count, blue[i] / count);
+      }
+    }
+
+    @Override
+    void multiplyAdd(int[] sums, int[] values, int offset, int weight, int from, int to) {
+      for (int i = from; i < to; i++) {
+        sums[i] += weight * values[offset + i];
+      }
+    }
+
+    @Override
+    void multiplyAdd(float[] sums, float[] values, int offset, float weight, int from, int to) {
+      for (int i = from; i < to; i++) {
+        sums[i] += weight * values[offset + i];
+      }
+    }
+  }
+}
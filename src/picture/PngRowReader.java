@@ -0,0 +1,260 @@
+package picture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes a PNG file one row at a time, top to bottom, keeping only the previous row. ImageIO's
+ * PNG reader decodes from the first row on every read, so reading a large PNG as a series of
+ * source regions costs time quadratic in the number of regions; this reader inflates the image
+ * data exactly once.
+ *
+ * <p>Only the layouts whose colours ImageIO reports unchanged are handled: non-interlaced 8-bit
+ * RGB and RGBA, and palette images of any bit depth, without an embedded ICC profile. Alpha and
+ * transparency are dropped, as Picture drops them. Use isSupported to check a file first.
+ */
+final class PngRowReader implements BandStream.RowReader {
+  private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+  private static final int IHDR = 0x49484452;
+  private static final int PLTE = 0x504c5445;
+  private static final int IDAT = 0x49444154;
+  private static final int ICCP = 0x69434350;
+
+  private final DataInputStream file;
+  private final Inflater inflater = new Inflater();
+  private final int width;
+  private final int height;
+  private final int colourType;
+  private final int bitDepth;
+  private final int bytesPerPixel;
+  private final int stride;
+  private int[] palette = new int[0];
+  private InputStream data;
+  private byte[] row;
+  private byte[] previous;
+  private int nextRow;
+
+  /**
+   * Opens the file and reads the chunks up to the image data.
+   *
+   * @throws IOException if the file is not a PNG or uses a layout this reader does not handle.
+   */
+  PngRowReader(String filepath) throws IOException {
+    file = new DataInputStream(new BufferedInputStream(new FileInputStream(filepath), 1 << 16));
+    try {
+      if (file.readLong() != SIGNATURE || file.readInt() != 13 || file.readInt() != IHDR) {
+        throw new IOException("'" + filepath + "' is not a PNG file");
+      }
+      width = file.readInt();
+      height = file.readInt();
+      bitDepth = file.readUnsignedByte();
+      colourType = file.readUnsignedByte();
+      file.readUnsignedByte();
+      file.readUnsignedByte();
+      int interlace = file.readUnsignedByte();
+      file.readInt();
+      boolean supported = interlace == 0
+              && (colourType == 3 || (colourType == 2 || colourType == 6) && bitDepth == 8);
+      if (!supported) {
+        throw new IOException("'" + filepath + "' uses a PNG layout that is not streamed");
+      }
+      int channels = colourType == 2 ? 3 : colourType == 6 ? 4 : 1;
+      bytesPerPixel = Math.max(1, channels * bitDepth / 8);
+      stride = (int) (((long) width * channels * bitDepth + 7) / 8);
+      readChunksToImageData(filepath);
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+    row = new byte[stride + 1];
+    previous = new byte[stride + 1];
+  }
+
+  /**
+   * Returns whether the file is a PNG this reader can stream.
+   */
+  static boolean isSupported(String filepath) {
+    try {
+      // The constructor reads the header and chunks, and closes the file itself if they fail.
+      new PngRowReader(filepath).close();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public void readRows(int rows, int[] dst, int offset) throws IOException {
+    for (int r = 0; r < rows; r++) {
+      if (nextRow == height) {
+        throw new EOFException("Read past the last row");
+      }
+      byte[] swap = previous;
+      previous = row;
+      row = swap;
+      readFully(row);
+      unfilter();
+      convert(dst, offset + r * width);
+      nextRow++;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    inflater.end();
+    file.close();
+  }
+
+  private void readChunksToImageData(String filepath) throws IOException {
+    while (true) {
+      int length = file.readInt();
+      int type = file.readInt();
+      if (type == IDAT) {
+        data = new InflaterInputStream(new ImageDataStream(length), inflater, 1 << 16);
+        return;
+      }
+      if (type == ICCP) {
+        throw new IOException("'" + filepath + "' has an ICC profile");
+      }
+      if (type == PLTE) {
+        palette = new int[length / 3];
+        for (int i = 0; i < palette.length; i++) {
+          palette[i] = file.readUnsignedByte() << 16 | file.readUnsignedByte() << 8
+                  | file.readUnsignedByte();
+        }
+        file.skipNBytes(length - 3 * palette.length);
+      } else {
+        file.skipNBytes(length);
+      }
+      file.readInt();
+    }
+  }
+
+  private void readFully(byte[] buffer) throws IOException {
+    int read = 0;
+    while (read < buffer.length) {
+      int n = data.read(buffer, read, buffer.length - read);
+      if (n < 0) {
+        throw new EOFException("PNG image data ends early");
+      }
+      read += n;
+    }
+  }
+
+  /**
+   * Undoes the row's filter in place. Byte 0 of each row is its filter type, so pixel bytes
+   * start at 1 and "left" or "above" bytes before the image are read as zero.
+   */
+  private void unfilter() throws IOException {
+    int bpp = bytesPerPixel;
+    switch (row[0]) {
+      case 0:
+        break;
+      case 1:
+        for (int i = 1 + bpp; i <= stride; i++) {
+          row[i] += row[i - bpp];
+        }
+        break;
+      case 2:
+        for (int i = 1; i <= stride; i++) {
+          row[i] += previous[i];
+        }
+        break;
+      case 3:
+        for (int i = 1; i <= stride; i++) {
+          int left = i > bpp ? row[i - bpp] & 0xff : 0;
+          row[i] += (left + (previous[i] & 0xff)) >>> 1;
+        }
+        break;
+      case 4:
+        for (int i = 1; i <= stride; i++) {
+          int left = i > bpp ? row[i - bpp] & 0xff : 0;
+          int above = previous[i] & 0xff;
+          int aboveLeft = i > bpp ? previous[i - bpp] & 0xff : 0;
+          row[i] += paeth(left, above, aboveLeft);
+        }
+        break;
+      default:
+        throw new IOException("Unknown PNG filter type " + row[0]);
+    }
+  }
+
+  private static int paeth(int a, int b, int c) {
+    int p = a + b - c;
+    int pa = Math.abs(p - a);
+    int pb = Math.abs(p - b);
+    int pc = Math.abs(p - c);
+    if (pa <= pb && pa <= pc) {
+      return a;
+    }
+    return pb <= pc ? b : c;
+  }
+
+  private void convert(int[] dst, int offset) {
+    if (colourType == 2 || colourType == 6) {
+      int step = colourType == 2 ? 3 : 4;
+      for (int x = 0, i = 1; x < width; x++, i += step) {
+        dst[offset + x] = (row[i] & 0xff) << 16 | (row[i + 1] & 0xff) << 8 | (row[i + 2] & 0xff);
+      }
+      return;
+    }
+    int perByte = 8 / bitDepth;
+    int mask = (1 << bitDepth) - 1;
+    for (int x = 0; x < width; x++) {
+      int bits = row[1 + x / perByte] & 0xff;
+      int index = bits >> (8 - bitDepth * (x % perByte + 1)) & mask;
+      dst[offset + x] = index < palette.length ? palette[index] : 0;
+    }
+  }
+
+  /**
+   * The concatenated payloads of consecutive IDAT chunks, starting inside the first one.
+   */
+  private final class ImageDataStream extends InputStream {
+    private int remaining;
+
+    ImageDataStream(int firstLength) {
+      remaining = firstLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      while (remaining == 0) {
+        file.readInt();
+        int next = file.readInt();
+        if (file.readInt() != IDAT) {
+          return -1;
+        }
+        remaining = next;
+      }
+      int n = file.read(buffer, offset, Math.min(length, remaining));
+      if (n < 0) {
+        return -1;
+      }
+      remaining -= n;
+      return n;
+    }
+  }
+}
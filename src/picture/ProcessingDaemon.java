@@ -0,0 +1,175 @@
+package picture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves PictureProcessor requests from a long-lived JVM, so each request skips JVM startup and
+ * runs on code that earlier requests have already warmed up. The daemon listens on a Unix-domain
+ * socket or a loopback TCP port. A request is the argument array of one PictureProcessor
+ * invocation; the reply carries whether it succeeded, how long it ran, on failure why, and what
+ * the command printed on stdout and stderr, including a "--stats" line. A request cannot start
+ * another daemon.
+ * Each connection may send any number of requests, which run in order on a pool of worker
+ * threads; connections beyond the pool size wait for a free worker.
+ *
+ * <p>On the wire, a request is an int count followed by that many modified-UTF-8 strings, and a
+ * reply is a boolean, a long duration in nanoseconds, the failure message as a string, empty on
+ * success, and the printed stdout and stderr, each as an int length followed by that many UTF-8
+ * bytes. The request "shutdown" stops
+ * the daemon. Relative paths are resolved against the daemon's working directory.
+ */
+final class ProcessingDaemon {
+  static final String SHUTDOWN = "shutdown";
+  private static final int SHUTDOWN_GRACE_SECONDS = 5;
+
+  private final ServerSocketChannel server;
+  private final ExecutorService workers;
+  private final Path socketFile;
+
+  /**
+   * Binds to the given address, which is a port number for a loopback TCP socket or otherwise the
+   * path of a Unix-domain socket, replacing any stale socket file. Requests run on the given
+   * number of worker threads.
+   */
+  ProcessingDaemon(String address, int threads) throws IOException {
+    SocketAddress socketAddress = address(address);
+    if (socketAddress instanceof UnixDomainSocketAddress) {
+      socketFile = ((UnixDomainSocketAddress) socketAddress).getPath();
+      Files.deleteIfExists(socketFile);
+      server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    } else {
+      socketFile = null;
+      server = ServerSocketChannel.open();
+    }
+    server.bind(socketAddress);
+    workers = Executors.newFixedThreadPool(threads);
+  }
+
+  static SocketAddress address(String address) {
+    if (address.matches("\\d+")) {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+    }
+    return UnixDomainSocketAddress.of(Paths.get(address));
+  }
+
+  static SocketChannel connect(String address) throws IOException {
+    SocketAddress socketAddress = address(address);
+    SocketChannel channel = socketAddress instanceof UnixDomainSocketAddress
+            ? SocketChannel.open(StandardProtocolFamily.UNIX)
+            : SocketChannel.open();
+    channel.connect(socketAddress);
+    return channel;
+  }
+
+  /**
+   * Accepts connections until a shutdown request arrives or close is called. Requests already
+   * running get a grace period to finish; connections still open after it are closed.
+   */
+  void serve() throws IOException {
+    try {
+      while (true) {
+        SocketChannel connection = server.accept();
+        workers.execute(() -> handle(connection));
+      }
+    } catch (ClosedChannelException e) {
+      // Closed by a shutdown request or by close().
+    } finally {
+      close();
+      workers.shutdown();
+      try {
+        if (!workers.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS)) {
+          // Interrupting a worker closes the channel it is blocked on.
+          workers.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  void close() throws IOException {
+    server.close();
+    if (socketFile != null) {
+      Files.deleteIfExists(socketFile);
+    }
+  }
+
+  private void handle(SocketChannel connection) {
+    try (SocketChannel channel = connection;
+         DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+         DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel))) {
+      while (true) {
+        String[] args;
+        try {
+          args = new String[in.readInt()];
+        } catch (EOFException e) {
+          return;
+        }
+        for (int i = 0; i < args.length; i++) {
+          args[i] = in.readUTF();
+        }
+        if (args.length == 1 && args[0].equals(SHUTDOWN)) {
+          reply(out, true, 0, "", new ByteArrayOutputStream(), new ByteArrayOutputStream());
+          close();
+          return;
+        }
+        long start = System.nanoTime();
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        try (PrintStream stdout = new PrintStream(printed, true, StandardCharsets.UTF_8);
+             PrintStream stderr = new PrintStream(errors, true, StandardCharsets.UTF_8)) {
+          boolean ok = false;
+          String message;
+          try {
+            if ("daemon".equals(PictureProcessor.commandName(args))) {
+              throw new IllegalArgumentException("A daemon cannot be started from a request");
+            }
+            PictureProcessor.execute(args, stdout, stderr);
+            ok = true;
+            message = "";
+          } catch (RuntimeException | Error e) {
+            // An Error such as running out of memory fails this request, not the connection.
+            message = String.valueOf(e);
+          }
+          reply(out, ok, System.nanoTime() - start, message, printed, errors);
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Connection failed: " + e);
+    }
+  }
+
+  private static void reply(DataOutputStream out, boolean ok, long nanos, String message,
+                            ByteArrayOutputStream printed, ByteArrayOutputStream errors)
+          throws IOException {
+    out.writeBoolean(ok);
+    out.writeLong(nanos);
+    out.writeUTF(message);
+    out.writeInt(printed.size());
+    printed.writeTo(out);
+    out.writeInt(errors.size());
+    errors.writeTo(out);
+    out.flush();
+  }
+}
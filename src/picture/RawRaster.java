@@ -0,0 +1,156 @@
+package picture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A raster stored in a ".raw" file and accessed through memory mappings, so pictures larger than
+ * the heap can be read and written row by row through the OS page cache. The file is a 16-byte
+ * header (the magic "PXRW", a format version, the width and the height) followed by the pixels
+ * as 0x00RRGGBB ints in row-major order, all little-endian. A single mapping is limited to 2 GiB,
+ * so the pixels are mapped as consecutive segments of whole rows.
+ */
+final class RawRaster implements Closeable {
+  static final String EXTENSION = ".raw";
+  static final int HEADER_BYTES = 16;
+
+  private static final int MAGIC = 'P' | 'X' << 8 | 'R' << 16 | 'W' << 24;
+  private static final int VERSION = 1;
+  private static final long SEGMENT_BYTES = 1L << 30;
+
+  private final FileChannel channel;
+  private final int width;
+  private final int height;
+  private final int rowsPerSegment;
+  private final IntBuffer[] segments;
+
+  private RawRaster(FileChannel channel, int width, int height, boolean writable)
+          throws IOException {
+    this.channel = channel;
+    this.width = width;
+    this.height = height;
+    long rowBytes = 4L * Math.max(1, width);
+    rowsPerSegment = (int) Math.max(1, Math.min(height, SEGMENT_BYTES / rowBytes));
+    segments = new IntBuffer[(height + rowsPerSegment - 1) / rowsPerSegment];
+    FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE
+            : FileChannel.MapMode.READ_ONLY;
+    for (int s = 0; s < segments.length; s++) {
+      int rows = Math.min(rowsPerSegment, height - s * rowsPerSegment);
+      MappedByteBuffer mapped = channel.map(mode,
+              HEADER_BYTES + s * rowsPerSegment * rowBytes, rows * rowBytes);
+      segments[s] = mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+  }
+
+  /**
+   * Returns whether the path names a raw raster file, judging by its extension.
+   */
+  static boolean isRaw(String path) {
+    return path.toLowerCase().endsWith(EXTENSION);
+  }
+
+  /**
+   * Creates, or truncates, the file and maps a black raster of the given size for writing.
+   */
+  static RawRaster create(Path path, int width, int height) throws IOException {
+    if (width < 0 || height < 0) {
+      throw new IllegalArgumentException("Raster size must not be negative");
+    }
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).flip();
+      channel.write(header, 0);
+      return new RawRaster(channel, width, height, true);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Maps an existing raw raster file, for reading only unless writable is set.
+   *
+   * @throws IOException if the file is not a raw raster or is shorter than its header claims.
+   */
+  static RawRaster open(Path path, boolean writable) throws IOException {
+    FileChannel channel = writable
+            ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      channel.read(header, 0);
+      header.flip();
+      if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC
+              || header.getInt() != VERSION) {
+        throw new IOException("'" + path + "' is not a raw raster file");
+      }
+      int width = header.getInt();
+      int height = header.getInt();
+      if (width < 0 || height < 0
+              || channel.size() < HEADER_BYTES + 4L * width * height) {
+        throw new IOException("'" + path + "' is truncated or corrupt");
+      }
+      return new RawRaster(channel, width, height, writable);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  int getWidth() {
+    return width;
+  }
+
+  int getHeight() {
+    return height;
+  }
+
+  /**
+   * Copies rows [y0, y1) into dst from offset on, width ints per row. Safe to call from several
+   * threads at once.
+   */
+  void getRows(int y0, int y1, int[] dst, int offset) {
+    for (int y = y0; y < y1; y++) {
+      segments[y / rowsPerSegment].get((y % rowsPerSegment) * width, dst,
+              offset + (y - y0) * width, width);
+    }
+  }
+
+  /**
+   * Copies rows [y0, y1) from src, starting at offset, into the raster. Threads may write
+   * disjoint rows at once.
+   */
+  void setRows(int y0, int y1, int[] src, int offset) {
+    for (int y = y0; y < y1; y++) {
+      segments[y / rowsPerSegment].put((y % rowsPerSegment) * width, src,
+              offset + (y - y0) * width, width);
+    }
+  }
+
+  int getRGB(int x, int y) {
+    return segments[y / rowsPerSegment].get((y % rowsPerSegment) * width + x);
+  }
+
+  void setRGB(int x, int y, int rgb) {
+    segments[y / rowsPerSegment].put((y % rowsPerSegment) * width + x, rgb & 0xffffff);
+  }
+
+  /**
+   * Closes the file. Writes made through the mappings are already in the page cache and reach
+   * the file without an explicit flush. The mappings must no longer be used.
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
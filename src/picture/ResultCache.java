@@ -0,0 +1,274 @@
+package picture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A content-addressed store of command outputs on disk, so that a command repeated on unchanged
+ * inputs copies its earlier output instead of decoding, transforming and encoding again. An
+ * entry's key is the SHA-256 of the operation and its parameters and of the bytes of each input,
+ * so renaming an input still hits and changing any byte of it misses.
+ *
+ * <p>Any number of processes may share a directory. Entries are written to a temporary file and
+ * renamed into place, so a reader never sees a partial one, and two writers of the same key leave
+ * one of their identical outputs. A hit touches the entry's modification time, and after each
+ * store the least recently used entries are deleted until the total size is within the limit.
+ * Hits, misses and evictions are counted in a stats file in the directory, under a file lock.
+ */
+final class ResultCache {
+  static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+  private static final String ENTRY_SUFFIX = ".entry";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final String STATS_FILE = "stats";
+  private static final int HASH_BUFFER_BYTES = 1 << 16;
+  // Temporary files this old were left by a writer that died before renaming them.
+  private static final long STALE_TEMPORARY_MILLIS = TimeUnit.HOURS.toMillis(1);
+  // File locks are held per process, so threads of one process take turns here first.
+  private static final Object STATS_LOCK = new Object();
+
+  private final Path directory;
+  private final long maxBytes;
+
+  /**
+   * Opens the cache in the directory, creating it if needed, holding at most maxBytes of entries.
+   */
+  ResultCache(Path directory, long maxBytes) throws IOException {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Cache size must be positive, not " + maxBytes);
+    }
+    this.directory = Files.createDirectories(directory);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the key of the operation, given as its name and parameters, applied to the input
+   * files in order.
+   */
+  String key(List<String> operation, List<Path> inputs) throws IOException {
+    MessageDigest sha;
+    try {
+      sha = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_BYTES);
+    // Each part is prefixed with its length, so no two different lists hash the same bytes.
+    buffer.putInt(operation.size());
+    for (String part : operation) {
+      byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+      buffer.putInt(bytes.length).flip();
+      sha.update(buffer);
+      sha.update(bytes);
+      buffer.clear();
+    }
+    buffer.putInt(inputs.size());
+    for (Path input : inputs) {
+      try (FileChannel channel = FileChannel.open(input)) {
+        buffer.putLong(channel.size());
+        while (channel.read(buffer) >= 0) {
+          buffer.flip();
+          sha.update(buffer);
+          buffer.clear();
+        }
+      }
+    }
+    buffer.flip();
+    sha.update(buffer);
+    StringBuilder hex = new StringBuilder();
+    for (byte b : sha.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Copies the entry for the key to the output and returns true, or returns false, leaving the
+   * output alone, if there is no such entry. Either way it is counted.
+   */
+  boolean restore(String key, Path output) throws IOException {
+    Path entry = entry(key);
+    boolean hit = true;
+    try {
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+      Files.copy(entry, output, StandardCopyOption.REPLACE_EXISTING);
+    } catch (NoSuchFileException e) {
+      if (Files.exists(entry)) {
+        throw e;
+      }
+      // There was no entry, or another process evicted it in the meantime.
+      hit = false;
+    }
+    count(hit ? 1 : 0, hit ? 0 : 1, 0);
+    return hit;
+  }
+
+  /**
+   * Stores a copy of the output as the entry for the key, then evicts the least recently used
+   * entries until the cache fits its size. Outputs larger than the whole cache are not stored.
+   */
+  void store(String key, Path output) throws IOException {
+    if (Files.size(output) > maxBytes) {
+      return;
+    }
+    Path temporary = Files.createTempFile(directory, key, TEMPORARY_SUFFIX);
+    try {
+      Files.copy(output, temporary, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(temporary, entry(key), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    evict();
+  }
+
+  private Path entry(String key) {
+    return directory.resolve(key + ENTRY_SUFFIX);
+  }
+
+  /**
+   * Deletes entries, oldest first, until the rest fit in maxBytes, and any stale temporary files.
+   */
+  private void evict() throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    long total = 0;
+    long staleBefore = System.currentTimeMillis() - STALE_TEMPORARY_MILLIS;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+          if (name.endsWith(ENTRY_SUFFIX)) {
+            entries.add(new Entry(file, attributes.size(), attributes.lastModifiedTime()));
+            total += attributes.size();
+          } else if (name.endsWith(TEMPORARY_SUFFIX)
+                  && attributes.lastModifiedTime().toMillis() < staleBefore) {
+            Files.deleteIfExists(file);
+          }
+        } catch (NoSuchFileException e) {
+          // Evicted or renamed by another process while listing.
+        }
+      }
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    entries.sort(Comparator.comparing((Entry entry) -> entry.used));
+    int evicted = 0;
+    for (int i = 0; i < entries.size() && total > maxBytes; i++) {
+      if (Files.deleteIfExists(entries.get(i).file)) {
+        evicted++;
+      }
+      total -= entries.get(i).size;
+    }
+    count(0, 0, evicted);
+  }
+
+  /**
+   * Returns the counts accumulated in the directory so far, and the entries it holds now.
+   */
+  Stats stats() throws IOException {
+    long[] counts = count(0, 0, 0);
+    int entries = 0;
+    long bytes = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + ENTRY_SUFFIX)) {
+      for (Path file : files) {
+        try {
+          bytes += Files.size(file);
+          entries++;
+        } catch (NoSuchFileException e) {
+          // Evicted while listing.
+        }
+      }
+    }
+    return new Stats(counts[0], counts[1], counts[2], entries, bytes);
+  }
+
+  /**
+   * Adds to the hit, miss and eviction counts in the stats file and returns the new counts.
+   */
+  private long[] count(long hits, long misses, long evictions) throws IOException {
+    synchronized (STATS_LOCK) {
+      try (FileChannel channel = FileChannel.open(directory.resolve(STATS_FILE),
+              StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        FileLock lock = channel.lock();
+        try {
+          // The file is one short line, which a single read of a regular file returns whole.
+          ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+          channel.read(buffer, 0);
+          String[] stored = new String(buffer.array(), 0, buffer.position(),
+                  StandardCharsets.US_ASCII).trim().split(" ");
+          long[] counts = {hits, misses, evictions};
+          for (int i = 0; i < counts.length && stored.length == counts.length; i++) {
+            counts[i] += Long.parseLong(stored[i]);
+          }
+          if (hits != 0 || misses != 0 || evictions != 0) {
+            byte[] line = (counts[0] + " " + counts[1] + " " + counts[2] + "\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            channel.truncate(0).write(ByteBuffer.wrap(line), 0);
+          }
+          return counts;
+        } finally {
+          lock.release();
+        }
+      }
+    }
+  }
+
+  private static final class Entry {
+    final Path file;
+    final long size;
+    final FileTime used;
+
+    Entry(Path file, long size, FileTime used) {
+      this.file = file;
+      this.size = size;
+      this.used = used;
+    }
+  }
+
+  /**
+   * The hits, misses and evictions counted in a cache directory, and its entries and their size.
+   */
+  static final class Stats {
+    final long hits;
+    final long misses;
+    final long evictions;
+    final int entries;
+    final long bytes;
+
+    Stats(long hits, long misses, long evictions, int entries, long bytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.entries = entries;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public String toString() {
+      long lookups = hits + misses;
+      return String.format(Locale.ROOT,
+              "%d hits, %d misses (%.1f%% hit rate), %d evicted; %d entries, %.2f MB",
+              hits, misses, lookups == 0 ? 0 : 100.0 * hits / lookups, evictions, entries,
+              bytes / 1e6);
+    }
+  }
+}
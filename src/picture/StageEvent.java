@@ -0,0 +1,35 @@
+package picture;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One stage of a PictureProcessor run, such as decoding the input, transforming it or encoding
+ * the output. The event's duration is the stage's wall time.
+ */
+@Name("picture.Stage")
+@Label("Picture Stage")
+@Category("PixelFast")
+@StackTrace(false)
+final class StageEvent extends Event {
+  @Label("Stage")
+  String stage;
+
+  @Label("Pixels")
+  long pixels;
+
+  @Label("Bytes")
+  @Description("File bytes read or written by the stage")
+  @DataAmount
+  long bytes;
+
+  @Label("Allocated")
+  @Description("Bytes allocated by all threads while the stage ran")
+  @DataAmount
+  long allocatedBytes;
+}
@@ -0,0 +1,191 @@
+package picture;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs an operation over the output raster of a picture in rectangular tiles spread across a
+ * fork/join pool. Every pixel belongs to exactly one tile, so any operation whose result for a
+ * pixel depends only on its inputs produces the same output as a single-threaded loop. Rasters
+ * smaller than the sequential threshold, or any raster when the parallelism is 1, are processed
+ * tile by tile on the calling thread.
+ *
+ * <p>The shared executor uses the parallelism given by the system property
+ * "picture.parallelism", defaulting to the number of available processors.
+ */
+public class TileExecutor {
+
+  /**
+   * Processes the tile spanning columns [x0, x1) and rows [y0, y1) of the output raster.
+   */
+  public interface TileKernel {
+    void apply(int x0, int y0, int x1, int y1);
+  }
+
+  public static final int DEFAULT_TILE_WIDTH = 256;
+  public static final int DEFAULT_TILE_HEIGHT = 64;
+  public static final int DEFAULT_SEQUENTIAL_THRESHOLD = 256 * 256;
+
+  private static volatile TileExecutor shared;
+
+  private final int parallelism;
+  private final int tileWidth;
+  private final int tileHeight;
+  private final int sequentialThreshold;
+  private ForkJoinPool pool;
+
+  public TileExecutor(int parallelism) {
+    this(parallelism, DEFAULT_TILE_WIDTH, DEFAULT_TILE_HEIGHT, DEFAULT_SEQUENTIAL_THRESHOLD);
+  }
+
+  public TileExecutor(int parallelism, int tileWidth, int tileHeight, int sequentialThreshold) {
+    if (parallelism < 1 || tileWidth < 1 || tileHeight < 1) {
+      throw new IllegalArgumentException("Parallelism and tile dimensions must be positive");
+    }
+    this.parallelism = parallelism;
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+    this.sequentialThreshold = sequentialThreshold;
+  }
+
+  /**
+   * Returns the executor used by Picture operations.
+   */
+  public static TileExecutor shared() {
+    if (shared == null) {
+      synchronized (TileExecutor.class) {
+        if (shared == null) {
+          shared = new TileExecutor(Integer.getInteger("picture.parallelism",
+                  Runtime.getRuntime().availableProcessors()));
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Replaces the executor used by Picture operations, e.g. to pin the parallelism level.
+   */
+  public static void setShared(TileExecutor executor) {
+    shared = executor;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Applies the kernel to every tile of a width x height raster and returns once all tiles are
+   * done.
+   */
+  public void forEachTile(int width, int height, TileKernel kernel) {
+    run(width, height, tileWidth, tileHeight, kernel);
+  }
+
+  /**
+   * Applies the kernel to tiles of the given size rather than the executor's default, e.g. square
+   * blocks for operations that read their input in column order.
+   */
+  public void forEachTile(int width, int height, int tileWidth, int tileHeight,
+                          TileKernel kernel) {
+    run(width, height, Math.max(1, tileWidth), Math.max(1, tileHeight), kernel);
+  }
+
+  /**
+   * Applies the kernel to full-width bands of at most bandHeight rows, for operations that carry
+   * state along a row or down a band.
+   */
+  public void forEachRowBand(int width, int height, int bandHeight, TileKernel kernel) {
+    run(width, height, width, Math.max(1, bandHeight), kernel);
+  }
+
+  /**
+   * Applies the kernel to consecutive chunks of at most chunkSize indices of [0, length), for
+   * work that is not laid out as a raster. Each chunk is passed as the tile [x0, x1) x [0, 1).
+   */
+  public void forEachRange(int length, int chunkSize, TileKernel kernel) {
+    run(length, 1, Math.max(1, chunkSize), 1, kernel);
+  }
+
+  /**
+   * Applies the kernel to each of count independent tasks, passed as the tile [i, i + 1) x
+   * [0, 1). Unlike the other methods, the sequential threshold does not apply: the count is of
+   * tasks rather than pixels, so they go to the pool whenever there is more than one.
+   */
+  public void forEachTask(int count, TileKernel kernel) {
+    run(count, 1, 1, 1, 2, kernel);
+  }
+
+  private void run(int width, int height, int tileWidth, int tileHeight, TileKernel kernel) {
+    run(width, height, tileWidth, tileHeight, sequentialThreshold, kernel);
+  }
+
+  private void run(int width, int height, int tileWidth, int tileHeight, long threshold,
+                   TileKernel kernel) {
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+    int columns = (width + tileWidth - 1) / tileWidth;
+    int rows = (height + tileHeight - 1) / tileHeight;
+    if (parallelism == 1 || (long) width * height < threshold) {
+      for (int y0 = 0; y0 < height; y0 += tileHeight) {
+        for (int x0 = 0; x0 < width; x0 += tileWidth) {
+          kernel.apply(x0, y0, Math.min(x0 + tileWidth, width), Math.min(y0 + tileHeight, height));
+        }
+      }
+      return;
+    }
+    pool().invoke(new Tiles(kernel, width, height, tileWidth, tileHeight, columns, 0,
+            columns * rows));
+  }
+
+  private synchronized ForkJoinPool pool() {
+    if (pool == null) {
+      pool = parallelism == ForkJoinPool.getCommonPoolParallelism()
+              ? ForkJoinPool.commonPool()
+              : new ForkJoinPool(parallelism);
+    }
+    return pool;
+  }
+
+  // RecursiveAction is Serializable, but tasks are never serialized.
+  @SuppressWarnings("serial")
+  private static class Tiles extends RecursiveAction {
+    private final TileKernel kernel;
+    private final int width;
+    private final int height;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int columns;
+    private final int from;
+    private final int to;
+
+    Tiles(TileKernel kernel, int width, int height, int tileWidth, int tileHeight, int columns,
+          int from, int to) {
+      this.kernel = kernel;
+      this.width = width;
+      this.height = height;
+      this.tileWidth = tileWidth;
+      this.tileHeight = tileHeight;
+      this.columns = columns;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        int x0 = (from % columns) * tileWidth;
+        int y0 = (from / columns) * tileHeight;
+        kernel.apply(x0, y0, Math.min(x0 + tileWidth, width), Math.min(y0 + tileHeight, height));
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(split(from, middle), split(middle, to));
+    }
+
+    private Tiles split(int start, int end) {
+      return new Tiles(kernel, width, height, tileWidth, tileHeight, columns, start, end);
+    }
+  }
+}
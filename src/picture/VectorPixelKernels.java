@@ -0,0 +1,151 @@
+package picture;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * PixelKernels on the Vector API. Each channel is unpacked into its own vector of ints, and the
+ * pixels left over after the last whole vector go through the scalar kernels.
+ *
+ * <p>There is no vector integer division, so the divisions are replaced by ones that give the
+ * same truncated quotient over the range of values they see: the grey's division by 3 is a
+ * multiply and shift, make dark multiplies by a rounded-up 16-bit reciprocal of the magnitude,
+ * and blend multiplies by a 23-bit reciprocal of the count and corrects from the remainder.
+ */
+final class VectorPixelKernels extends PixelKernels {
+  private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+  private static final VectorOperators.Binary SHR = VectorOperators.LSHR;
+  private static final VectorOperators.Binary SHL = VectorOperators.LSHL;
+  // n / 3 == n * 0xaaab >>> 17 for every n below 2^16, and channel sums are at most 765.
+  private static final int THIRD = 0xaaab;
+  // The largest blend count whose quotients the 23-bit reciprocal gets to within one.
+  private static final int MAX_COUNT = (1 << 15) - 1;
+
+  private final PixelKernels scalar = PixelKernels.scalar();
+
+  static boolean isWorthwhile() {
+    return INTS.length() >= 4;
+  }
+
+  @Override
+  void invert(int[] src, int[] dst, int from, int to) {
+    int i = from;
+    for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length()) {
+      IntVector.fromArray(INTS, src, i).lanewise(VectorOperators.XOR, 0xffffff).and(0xffffff)
+              .intoArray(dst, i);
+    }
+    scalar.invert(src, dst, i, to);
+  }
+
+  @Override
+  void grayScale(int[] src, int[] dst, int from, int to) {
+    int i = from;
+    for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length()) {
+      IntVector rgb = IntVector.fromArray(INTS, src, i);
+      IntVector sum = rgb.lanewise(SHR, 16).and(0xff)
+              .add(rgb.lanewise(SHR, 8).and(0xff))
+              .add(rgb.and(0xff));
+      sum.mul(THIRD).lanewise(SHR, 17).mul(0x010101).intoArray(dst, i);
+    }
+    scalar.grayScale(src, dst, i, to);
+  }
+
+  /**
+   * Divides by multiplying with m = ceil(2^16 / magnitude) and shifting right by 16. Writing
+   * m * magnitude = 2^16 + e with e < magnitude, the quotient is exact whenever channel * e is
+   * below 2^16, which holds for channels up to 255 and magnitudes up to 255; larger magnitudes
+   * give 0, as m = 0 does. Zero and negative magnitudes are left to the scalar kernels.
+   */
+  @Override
+  void makeDark(int[] src, int[] dst, int from, int to, int magnitude) {
+    if (magnitude <= 0) {
+      scalar.makeDark(src, dst, from, to, magnitude);
+      return;
+    }
+    int reciprocal = magnitude > 255 ? 0 : ((1 << 16) + magnitude - 1) / magnitude;
+    int i = from;
+    for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length()) {
+      IntVector rgb = IntVector.fromArray(INTS, src, i);
+      IntVector red = rgb.lanewise(SHR, 16).and(0xff).mul(reciprocal).lanewise(SHR, 16);
+      IntVector green = rgb.lanewise(SHR, 8).and(0xff).mul(reciprocal).lanewise(SHR, 16);
+      IntVector blue = rgb.and(0xff).mul(reciprocal).lanewise(SHR, 16);
+      red.lanewise(SHL, 16).or(green.lanewise(SHL, 8)).or(blue).intoArray(dst, i);
+    }
+    scalar.makeDark(src, dst, i, to, magnitude);
+  }
+
+  @Override
+  void accumulate(int[] src, int srcFrom, int[] red, int[] green, int[] blue, int from,
+                  int to) {
+    int i = from;
+    int j = srcFrom;
+    for (int bound = from + INTS.loopBound(to - from); i < bound;
+         i += INTS.length(), j += INTS.length()) {
+      IntVector rgb = IntVector.fromArray(INTS, src, j);
+      IntVector.fromArray(INTS, red, i).add(rgb.lanewise(SHR, 16).and(0xff)).intoArray(red, i);
+      IntVector.fromArray(INTS, green, i).add(rgb.lanewise(SHR, 8).and(0xff))
+              .intoArray(green, i);
+      IntVector.fromArray(INTS, blue, i).add(rgb.and(0xff)).intoArray(blue, i);
+    }
+    scalar.accumulate(src, j, red, green, blue, i, to);
+  }
+
+  /**
+   * Divides by multiplying with m = floor(2^23 / count) and shifting right by 23, then adding 1
+   * where the remainder shows the estimate one short. For totals of at most 255 * count, the
+   * product stays below 2^31 and the estimate is off by less than 255 * count / 2^23, which is
+   * under 1 for counts below 2^15; larger counts are left to the scalar kernels.
+   */
+  @Override
+  void average(int[] red, int[] green, int[] blue, int count, int[] dst, int from, int to) {
+    if (count <= 0 || count > MAX_COUNT) {
+      scalar.average(red, green, blue, count, dst, from, to);
+      return;
+    }
+    int reciprocal = (1 << 23) / count;
+    int i = from;
+    for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length()) {
+      IntVector r = quotient(IntVector.fromArray(INTS, red, i), count, reciprocal);
+      IntVector g = quotient(IntVector.fromArray(INTS, green, i), count, reciprocal);
+      IntVector b = quotient(IntVector.fromArray(INTS, blue, i), count, reciprocal);
+      r.lanewise(SHL, 16).or(g.lanewise(SHL, 8)).or(b).intoArray(dst, i);
+    }
+    scalar.average(red, green, blue, count, dst, i, to);
+  }
+
+  @Override
+  void multiplyAdd(int[] sums, int[] values, int offset, int weight, int from, int to) {
+    int i = from;
+    for (int bound = from + INTS.loopBound(to - from); i < bound; i += INTS.length()) {
+      IntVector.fromArray(INTS, values, offset + i).mul(weight)
+              .add(IntVector.fromArray(INTS, sums, i)).intoArray(sums, i);
+    }
+    scalar.multiplyAdd(sums, values, offset, weight, i, to);
+  }
+
+  /**
+   * Multiplies and adds with separate roundings, as the scalar kernel does, rather than fused.
+   */
+  @Override
+  void multiplyAdd(float[] sums, float[] values, int offset, float weight, int from, int to) {
+    int i = from;
+    for (int bound = from + FLOATS.loopBound(to - from); i < bound; i += FLOATS.length()) {
+      FloatVector.fromArray(FLOATS, values, offset + i).mul(weight)
+              .add(FloatVector.fromArray(FLOATS, sums, i)).intoArray(sums, i);
+    }
+    scalar.multiplyAdd(sums, values, offset, weight, i, to);
+  }
+
+  /**
+   * Returns the totals divided by the count. The estimate's remainder lies in [0, 2 * count), and
+   * (count - 1 - remainder) >> 31 is -1 exactly where it is count or more.
+   */
+  private static IntVector quotient(IntVector totals, int count, int reciprocal) {
+    IntVector estimate = totals.mul(reciprocal).lanewise(SHR, 23);
+    IntVector remainder = totals.sub(estimate.mul(count));
+    return estimate.sub(remainder.neg().add(count - 1).lanewise(VectorOperators.ASHR, 31));
+  }
+}
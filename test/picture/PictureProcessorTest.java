@@ -1,8 +1,23 @@
 package picture;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.imageio.ImageIO;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -82,6 +97,20 @@ public class PictureProcessorTest {
         TestSuiteHelper.runMain(tmpFolder, "rotate", "270", "images/blue64x32doc.png"));
   }
 
+  @Test
+  public void rotateMinus90BlueRect() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/blueR27064x32doc.png"),
+        TestSuiteHelper.runMain(tmpFolder, "rotate", "-90", "images/blue64x32doc.png"));
+  }
+
+  @Test
+  public void rotate450BlueRect() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/blueR9064x32doc.png"),
+        TestSuiteHelper.runMain(tmpFolder, "rotate", "450", "images/blue64x32doc.png"));
+  }
+
   @Test
   public void flipVGreen() throws IOException {
     Assert.assertEquals(
@@ -124,6 +153,20 @@ public class PictureProcessorTest {
         TestSuiteHelper.runMain(tmpFolder, "blur", "images/sunset64x32.png"));
   }
 
+  @Test
+  public void blurRadiusOneIgnoreBWPatterns() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/bwpatternsblur64x64.png"),
+        TestSuiteHelper.runMain(tmpFolder, "blur", "1", "ignore", "images/bwpatterns64x64.png"));
+  }
+
+  @Test
+  public void blurRadiusZeroSunset() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/sunset64x32.png"),
+        TestSuiteHelper.runMain(tmpFolder, "blur", "0", "wrap", "images/sunset64x32.png"));
+  }
+
   @Test
   public void blendBWAndRainbow() throws IOException {
     Assert.assertEquals(
@@ -139,6 +182,871 @@ public class PictureProcessorTest {
         TestSuiteHelper.runMain(
             tmpFolder, "blend", "images/rainbow64x64doc.png", "images/sunset64x32.png"));
   }
-}
 
+  @Test
+  public void blendRainbowThreeTimes() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/rainbow64x64doc.png"),
+        TestSuiteHelper.runMain(tmpFolder, "blend", "images/rainbow64x64doc.png",
+            "images/rainbow64x64doc.png", "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void mosaicRainbowWithItself() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/rainbow64x64doc.png"),
+        TestSuiteHelper.runMain(tmpFolder, "mosaic", "8", "images/rainbow64x64doc.png",
+            "images/rainbow64x64doc.png"));
+  }
 
+  @Test
+  public void compressBlack() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/black64x64.png"),
+        TestSuiteHelper.runMain(tmpFolder, "compress", "images/black64x64.png"));
+  }
+
+  @Test
+  public void compressWhiteOneIteration() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/white64x64.png"),
+        TestSuiteHelper.runMain(
+            tmpFolder, "compress", "--max-iterations", "1", "images/white64x64.png"));
+  }
+
+  @Test
+  public void compressEnginesAgreeOnRainbow() throws IOException {
+    KmeansClustering hamerly = new KmeansClustering(KmeansClustering.DEFAULT_MAX_ITERATIONS,
+        KmeansClustering.DEFAULT_CONVERGENCE_THRESHOLD, KmeansClustering.Engine.HAMERLY);
+    Assert.assertEquals(
+        new Picture(hamerly.evaluate(KmeansClustering.imageLoad("images/rainbow64x64doc.png"), 60)),
+        TestSuiteHelper.runMain(
+            tmpFolder, "compress", "--engine", "brute-force", "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void compressRgbMatchesPaletteOnRainbow() throws IOException {
+    KmeansClustering clustering = new KmeansClustering();
+    Assert.assertEquals(
+        new Picture(clustering.evaluateIndexed(
+            KmeansClustering.imageLoad("images/rainbow64x64doc.png"), 60)),
+        TestSuiteHelper.runMain(tmpFolder, "compress", "--rgb", "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void digestMatchesAcrossColourModels() {
+    BufferedImage rainbow = KmeansClustering.imageLoad("images/rainbow64x64doc.png");
+    Picture rgb = new Picture(new KmeansClustering().evaluate(rainbow, 8));
+    Picture indexed = new Picture(new KmeansClustering().evaluateIndexed(rainbow, 8));
+    Assert.assertEquals(rgb.hashCode(), indexed.hashCode());
+    Assert.assertEquals(rgb.contentDigest(), indexed.contentDigest());
+    Assert.assertNotEquals(new Picture(2, 3).contentDigest(), new Picture(3, 2).contentDigest());
+  }
+
+  @Test
+  public void hashAndDigestFollowSetPixel() {
+    Picture picture = new Picture("images/rainbow64x64doc.png");
+    int hash = picture.hashCode();
+    String digest = picture.contentDigest();
+    Color original = picture.getPixel(5, 7);
+    picture.setPixel(5, 7, new Color(original.getRed() ^ 1, original.getGreen(),
+        original.getBlue()));
+    Assert.assertNotEquals(hash, picture.hashCode());
+    Assert.assertNotEquals(digest, picture.contentDigest());
+    Assert.assertNotEquals(new Picture("images/rainbow64x64doc.png"), picture);
+    picture.setPixel(5, 7, original);
+    Assert.assertEquals(hash, picture.hashCode());
+    Assert.assertEquals(digest, picture.contentDigest());
+    Assert.assertEquals(new Picture("images/rainbow64x64doc.png"), picture);
+  }
+
+  @Test
+  public void hashAndDigestSurviveReadsAndFollowInvalidate() {
+    BufferedImage image = new Picture("images/rainbow64x64doc.png").image();
+    Picture picture = new Picture(image);
+    int hash = picture.hashCode();
+    String digest = picture.contentDigest();
+    picture.blur();
+    picture.pipeline().invert().render();
+    image.setRGB(5, 7, image.getRGB(5, 7) ^ 1);
+    // Operations that only read the picture kept its cached values, which now need invalidating.
+    Assert.assertEquals(hash, picture.hashCode());
+    picture.invalidate();
+    Assert.assertNotEquals(hash, picture.hashCode());
+    Assert.assertNotEquals(digest, picture.contentDigest());
+    Picture copy = new Picture(64, 64);
+    copy.setRGB(0, 0, 64, 64, picture.raster(), 0, 64);
+    Assert.assertEquals(copy, picture);
+  }
+
+  @Test
+  public void compressPackedPaletteMatchesRgb() {
+    BufferedImage rainbow = KmeansClustering.imageLoad("images/rainbow64x64doc.png");
+    for (int k = 2; k <= 16; k *= 2) {
+      Assert.assertEquals(new Picture(new KmeansClustering().evaluate(rainbow, k)),
+          new Picture(new KmeansClustering().evaluateIndexed(rainbow, k)));
+    }
+  }
+
+  @Test
+  public void bulkRgbRoundTripsSubRectangle() {
+    Picture source = randomPicture(20, 15, 1);
+    int[] region = new int[6 * 4];
+    source.getRGB(3, 5, 6, 4, region, 0, 6);
+    for (int y = 0; y < 4; y++) {
+      for (int x = 0; x < 6; x++) {
+        Assert.assertEquals(source.getRGB(3 + x, 5 + y), region[y * 6 + x]);
+      }
+    }
+    Picture copy = new Picture(20, 15);
+    copy.setRGB(3, 5, 6, 4, region, 0, 6);
+    for (int y = 0; y < 15; y++) {
+      for (int x = 0; x < 20; x++) {
+        boolean inside = x >= 3 && x < 9 && y >= 5 && y < 9;
+        Assert.assertEquals(inside ? source.getRGB(x, y) : 0, copy.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void bulkRgbHonoursOffsetAndStride() {
+    Picture source = randomPicture(10, 8, 2);
+    int offset = 7;
+    int stride = 13;
+    int[] buffer = new int[offset + 3 * stride];
+    Arrays.fill(buffer, -1);
+    source.getRGB(2, 4, 5, 3, buffer, offset, stride);
+    for (int i = 0; i < buffer.length; i++) {
+      int column = (i - offset) % stride;
+      int row = (i - offset) / stride;
+      boolean written = i >= offset && column < 5 && row < 3;
+      Assert.assertEquals(written ? source.getRGB(2 + column, 4 + row) : -1, buffer[i]);
+    }
+    // The alpha bits of the -1 padding must not leak into the picture.
+    Picture target = new Picture(10, 8);
+    target.setRGB(2, 4, 5, 3, buffer, offset, stride);
+    target.setRGB(0, 0, 1, 1, buffer, 0, stride);
+    Assert.assertEquals(0xffffff, target.getRGB(0, 0));
+    for (int y = 4; y < 7; y++) {
+      for (int x = 2; x < 7; x++) {
+        Assert.assertEquals(source.getRGB(x, y), target.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void bulkRgbRejectsRegionsOutsideThePicture() {
+    Picture picture = new Picture(10, 8);
+    int[] buffer = new int[200];
+    int[][] regions = {{-1, 0, 2, 2}, {0, -1, 2, 2}, {9, 0, 2, 2}, {0, 7, 2, 2},
+        {0, 0, 11, 1}, {0, 0, 1, 9}, {0, 0, -1, 1}, {1, 0, Integer.MAX_VALUE, 1},
+        {0, 1, 1, Integer.MAX_VALUE}};
+    for (int[] r : regions) {
+      try {
+        picture.getRGB(r[0], r[1], r[2], r[3], buffer, 0, 10);
+        Assert.fail("getRGB accepted " + Arrays.toString(r));
+      } catch (ArrayIndexOutOfBoundsException expected) {
+        // The region is not contained in the picture.
+      }
+      try {
+        picture.setRGB(r[0], r[1], r[2], r[3], buffer, 0, 10);
+        Assert.fail("setRGB accepted " + Arrays.toString(r));
+      } catch (ArrayIndexOutOfBoundsException expected) {
+        // The region is not contained in the picture.
+      }
+    }
+  }
+
+  @Test
+  public void kmeansIsIdenticalAcrossThreadCounts() {
+    // More distinct colours than one chunk, and no sequential threshold, so the four-thread run
+    // really merges sums from several chunks computed on the pool.
+    BufferedImage image = randomPicture(300, 200, 10).image();
+    for (KmeansClustering.Engine engine : KmeansClustering.Engine.values()) {
+      KmeansClustering single = new KmeansClustering(20, 0, engine, new TileExecutor(1));
+      KmeansClustering parallel = new KmeansClustering(20, 0, engine,
+          new TileExecutor(4, TileExecutor.DEFAULT_TILE_WIDTH,
+              TileExecutor.DEFAULT_TILE_HEIGHT, 0));
+      Picture expected = new Picture(single.evaluate(image, 24));
+      Assert.assertEquals(expected, new Picture(parallel.evaluate(image, 24)));
+      Assert.assertEquals(single.getIterations(), parallel.getIterations());
+      for (int c = 0; c < single.clusters.length; c++) {
+        Assert.assertEquals(single.clusters[c].getRGB(), parallel.clusters[c].getRGB());
+      }
+    }
+  }
+
+  @Test
+  public void compressMiniBatchLabelCacheMatchesUncached() throws IOException {
+    MiniBatchKmeans uncached = new MiniBatchKmeans(256, 10);
+    uncached.setLabelCacheBits(0);
+    Assert.assertEquals(
+        new Picture(uncached.evaluate(
+            KmeansClustering.imageLoad("images/rainbow64x64doc.png"), 60)),
+        TestSuiteHelper.runMain(tmpFolder, "compress", "--mini-batch", "256", "--max-iterations",
+            "10", "--label-cache-bits", "6", "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void compressStatsReportStagesAndIterations() throws IOException {
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    PrintStream stderr = System.err;
+    System.setErr(new PrintStream(errors, true));
+    Picture compressed;
+    try {
+      compressed = TestSuiteHelper.runMain(tmpFolder, "--stats", "compress", "--mini-batch",
+          "256", "--max-iterations", "7", "images/black64x64.png");
+    } finally {
+      System.setErr(stderr);
+    }
+    Assert.assertEquals(new Picture("images/black64x64.png"), compressed);
+    String stats = errors.toString().trim();
+    Assert.assertTrue(stats, stats.startsWith("{\"command\":\"compress\""));
+    Assert.assertTrue(stats, stats.contains("{\"stage\":\"decode\",")
+        && stats.contains("{\"stage\":\"transform\",") && stats.contains("{\"stage\":\"encode\","));
+    Assert.assertTrue(stats, stats.contains("\"pixels\":4096,"));
+    Assert.assertTrue(stats, stats.contains("\"kmeans\":{\"iterations\":7,"));
+  }
+
+  @Test
+  public void statsAreNotInheritedButBoundTasksReportToThem() throws InterruptedException {
+    Instrumentation.Stats collected = Instrumentation.collect("test");
+    try {
+      Thread started = new Thread(() -> Instrumentation.stage("unbound").close());
+      started.start();
+      started.join();
+      Thread pooled = new Thread(Instrumentation.bound(
+          () -> Instrumentation.stage("bound").close()));
+      pooled.start();
+      pooled.join();
+    } finally {
+      Instrumentation.stopCollecting();
+    }
+    String json = collected.toJson();
+    Assert.assertTrue(json, json.contains("{\"stage\":\"bound\","));
+    Assert.assertFalse(json, json.contains("\"unbound\""));
+  }
+
+  @Test
+  public void compressMiniBatchBlack() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/black64x64.png"),
+        TestSuiteHelper.runMain(tmpFolder, "compress", "--mini-batch", "256", "--max-iterations",
+            "10", "images/black64x64.png"));
+  }
+
+  @Test
+  public void batchInvertSkipsCorruptFile() throws IOException {
+    File input = tmpFolder.newFolder("in");
+    File output = new File(tmpFolder.getRoot(), "out");
+    Files.copy(Paths.get("images/black64x64.png"), input.toPath().resolve("black.png"));
+    Files.copy(Paths.get("images/rainbow64x64doc.png"), input.toPath().resolve("rainbow.png"));
+    Files.write(input.toPath().resolve("corrupt.png"), new byte[] {1, 2, 3});
+    PictureProcessor.main(new String[] {"batch", "--io-threads", "2", "--queue", "1", "invert",
+        input + "/*.png", output.getPath()});
+    Assert.assertEquals(new Picture("images/white64x64.png"),
+        new Picture(new File(output, "black.png").getPath()));
+    Assert.assertEquals(new Picture("images/rainbowI64x64doc.png"),
+        new Picture(new File(output, "rainbow.png").getPath()));
+    Assert.assertFalse(new File(output, "corrupt.png").exists());
+  }
+
+  @Test
+  public void batchFailsInputsSharingAnOutputName() throws IOException {
+    File input = tmpFolder.newFolder("in");
+    File output = new File(tmpFolder.getRoot(), "out");
+    Files.copy(Paths.get("images/black64x64.png"), input.toPath().resolve("a.png"));
+    Files.copy(Paths.get("images/white64x64.png"), input.toPath().resolve("a.bmp"));
+    Files.copy(Paths.get("images/rainbow64x64doc.png"), input.toPath().resolve("b.png"));
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    BatchProcessor.Report report = new BatchProcessor(1, 1, 1, new PrintStream(errors, true))
+        .run(BatchProcessor.inputs(input.getPath()), output.toPath(), Picture::invert);
+    Assert.assertEquals(1, report.written);
+    Assert.assertEquals(2, report.failed);
+    Assert.assertFalse(new File(output, "a.png").exists());
+    Assert.assertTrue(errors.toString(), errors.toString().contains("also written as a.png"));
+  }
+
+  @Test(timeout = 10000)
+  public void batchStopsWhenAStageThreadDies() throws IOException {
+    File input = tmpFolder.newFolder("in");
+    for (String name : new String[] {"a.png", "b.png", "c.png", "d.png"}) {
+      Files.copy(Paths.get("images/black64x64.png"), input.toPath().resolve(name));
+    }
+    // Reporting the failed transform throws, killing the only CPU worker while the decoder is
+    // blocked on the full queue behind it.
+    PrintStream dying = new PrintStream(new ByteArrayOutputStream()) {
+      @Override
+      public void println(String line) {
+        throw new AssertionError(line);
+      }
+    };
+    BatchProcessor batch = new BatchProcessor(1, 1, 1, dying);
+    try {
+      batch.run(BatchProcessor.inputs(input.getPath()),
+          new File(tmpFolder.getRoot(), "out").toPath(), picture -> {
+            throw new IllegalStateException("transform failed");
+          });
+      Assert.fail("The run should rethrow the dead worker's error");
+    } catch (AssertionError e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("transform failed"));
+    }
+  }
+
+  @Test
+  public void daemonInvertsThenShutsDown() throws Exception {
+    String socket = new File(tmpFolder.getRoot(), "daemon.sock").getPath();
+    ProcessingDaemon daemon = new ProcessingDaemon(socket, 1);
+    Thread server = new Thread(() -> {
+      try {
+        daemon.serve();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    server.start();
+    String output = new File(tmpFolder.getRoot(), "out.png").getPath();
+    try (DaemonClient client = new DaemonClient(socket)) {
+      Assert.assertTrue(client.run("invert", "images/rainbow64x64doc.png", output).ok);
+      Assert.assertFalse(client.run("rotate", "90").ok);
+      DaemonClient.Response stats = client.run("--stats", "invert",
+          "images/rainbow64x64doc.png", output);
+      Assert.assertTrue(stats.ok);
+      Assert.assertTrue(stats.errors, stats.errors.startsWith("{\"command\":\"invert\""));
+      Assert.assertEquals("", client.run("invert", "images/rainbow64x64doc.png", output).errors);
+      String input = "images/rainbow64x64doc.png";
+      DaemonClient.Response digest = client.run("digest", input);
+      Assert.assertTrue(digest.ok);
+      Assert.assertEquals(new Picture(input).contentDigest() + "  " + input, digest.output.trim());
+      DaemonClient.Response mistyped = client.run("invret", "images/rainbow64x64doc.png", output);
+      Assert.assertFalse(mistyped.ok);
+      Assert.assertTrue(mistyped.message, mistyped.message.contains("incorrectly typed"));
+      Assert.assertFalse(client.run("--png", "fast", "daemon", "12345").ok);
+    }
+    try (DaemonClient client = new DaemonClient(socket)) {
+      Assert.assertTrue(client.run(ProcessingDaemon.SHUTDOWN).ok);
+    }
+    server.join();
+    Assert.assertEquals(new Picture("images/rainbowI64x64doc.png"), new Picture(output));
+    Assert.assertFalse(new File(socket).exists());
+  }
+
+  @Test
+  public void blurRawOutOfCore() throws IOException {
+    String raw = new File(tmpFolder.getRoot(), "in.raw").getPath();
+    String blurred = new File(tmpFolder.getRoot(), "out.raw").getPath();
+    PictureProcessor.main(new String[] {"convert", "images/bwpatterns64x64.png", raw});
+    PictureProcessor.main(new String[] {"blur", raw, blurred});
+    Assert.assertEquals(
+        new Picture("images/bwpatternsblur64x64.png"),
+        TestSuiteHelper.runMain(tmpFolder, "convert", blurred));
+  }
+
+  @Test
+  public void blendRawInputs() throws IOException {
+    String rainbow = new File(tmpFolder.getRoot(), "rainbow.raw").getPath();
+    String sunset = new File(tmpFolder.getRoot(), "sunset.raw").getPath();
+    new Picture("images/rainbow64x64doc.png").saveAs(rainbow);
+    new Picture("images/sunset64x32.png").saveAs(sunset);
+    Assert.assertEquals(
+        Picture.blend(List.of(new Picture("images/rainbow64x64doc.png"),
+            new Picture("images/sunset64x32.png"))),
+        TestSuiteHelper.runMain(tmpFolder, "blend", rainbow, sunset));
+  }
+
+  @Test
+  public void mosaicRawInputs() throws IOException {
+    String rainbow = new File(tmpFolder.getRoot(), "rainbow.raw").getPath();
+    String sunset = new File(tmpFolder.getRoot(), "sunset.raw").getPath();
+    new Picture("images/rainbow64x64doc.png").saveAs(rainbow);
+    new Picture("images/sunset64x32.png").saveAs(sunset);
+    Assert.assertEquals(
+        Picture.mosaic(List.of(new Picture("images/rainbow64x64doc.png"),
+            new Picture("images/sunset64x32.png")), 8),
+        TestSuiteHelper.runMain(tmpFolder, "mosaic", "8", rainbow, sunset));
+  }
+
+  @Test
+  public void mosaicStreamsMixedFormatsAndSizes() throws IOException {
+    String bmp = new File(tmpFolder.getRoot(), "noise.bmp").getPath();
+    Picture noise = randomPicture(80, 48, 3);
+    Assert.assertTrue(ImageIO.write(noise.image(), "bmp", new File(bmp)));
+    Assert.assertEquals(
+        Picture.mosaic(List.of(new Picture("images/rainbow64x64doc.png"), noise,
+            new Picture("images/sunset64x32.png")), 16),
+        TestSuiteHelper.runMain(tmpFolder, "mosaic", "16", "images/rainbow64x64doc.png", bmp,
+            "images/sunset64x32.png"));
+  }
+
+  @Test
+  public void flipVRawOutOfCore() throws IOException {
+    String raw = new File(tmpFolder.getRoot(), "in.raw").getPath();
+    String flipped = new File(tmpFolder.getRoot(), "out.raw").getPath();
+    new Picture("images/blue64x32doc.png").saveAs(raw);
+    PictureProcessor.main(new String[] {"flip", "V", raw, flipped});
+    Assert.assertEquals(new Picture("images/blueFV64x32doc.png"), new Picture(flipped));
+  }
+
+  @Test
+  public void blurBwPatternsSmallPng() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/bwpatternsblur64x64.png"),
+        TestSuiteHelper.runMain(tmpFolder, "--png", "small", "blur", "images/bwpatterns64x64.png"));
+  }
+
+  @Test
+  public void pngEncoderModesRoundTripAcrossChunks() throws IOException {
+    Picture original = new Picture(600, 400);
+    for (int y = 0; y < original.getHeight(); y++) {
+      for (int x = 0; x < original.getWidth(); x++) {
+        original.setRGB(x, y, y < 200 ? x * 7919 ^ y * 104729 : x << 8 | y);
+      }
+    }
+    String output = new File(tmpFolder.getRoot(), "out.png").getPath();
+    for (PngEncoder.Mode mode : PngEncoder.Mode.values()) {
+      new PngEncoder(mode, new TileExecutor(4)).write(original.image(), output);
+      Assert.assertEquals(original, new Picture(output));
+    }
+  }
+
+  @Test
+  public void pngEncoderRunsChunksOnSeveralThreads() throws IOException {
+    Picture original = new Picture(600, 400);
+    for (int y = 0; y < original.getHeight(); y++) {
+      for (int x = 0; x < original.getWidth(); x++) {
+        original.setRGB(x, y, x * 7919 ^ y * 104729);
+      }
+    }
+    Set<String> threads = ConcurrentHashMap.newKeySet();
+    TileExecutor executor = new TileExecutor(4) {
+      @Override
+      public void forEachTask(int count, TileKernel kernel) {
+        Assert.assertTrue(count > 1);
+        super.forEachTask(count, (x0, y0, x1, y1) -> {
+          threads.add(Thread.currentThread().getName());
+          try {
+            // Holds the task long enough for another worker to steal the rest, even on one core.
+            Thread.sleep(20);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          kernel.apply(x0, y0, x1, y1);
+        });
+      }
+    };
+    String output = new File(tmpFolder.getRoot(), "out.png").getPath();
+    new PngEncoder(PngEncoder.Mode.FAST, executor).write(original.image(), output);
+    Assert.assertEquals(original, new Picture(output));
+    Assert.assertTrue("chunks ran on " + threads, threads.size() > 1);
+  }
+
+  @Test
+  public void bandStreamMatchesFixtures() throws IOException {
+    String blurred = new File(tmpFolder.getRoot(), "blurred.png").getPath();
+    String flipped = new File(tmpFolder.getRoot(), "flipped.png").getPath();
+    BandStream.transform("images/bwpatterns64x64.png", blurred, 1, BorderMode.IGNORE,
+        band -> band.blur());
+    BandStream.flipVertical("images/blue64x32doc.png", flipped);
+    Assert.assertEquals(new Picture("images/bwpatternsblur64x64.png"), new Picture(blurred));
+    Assert.assertEquals(new Picture("images/blueFV64x32doc.png"), new Picture(flipped));
+  }
+
+  @Test
+  public void bandStreamAcrossBandsMatchesHeap() throws IOException {
+    Picture original = new Picture(1100, 2000);
+    for (int y = 0; y < original.getHeight(); y++) {
+      for (int x = 0; x < original.getWidth(); x++) {
+        original.setRGB(x, y, x * 7919 ^ y * 104729);
+      }
+    }
+    String input = new File(tmpFolder.getRoot(), "in.png").getPath();
+    String output = new File(tmpFolder.getRoot(), "out.png").getPath();
+    original.saveAs(input);
+    for (BorderMode mode : new BorderMode[] {BorderMode.IGNORE, BorderMode.CLAMP}) {
+      BandStream.transform(input, output, 4, mode, band -> band.blur(4, mode));
+      Assert.assertEquals(original.blur(4, mode), new Picture(output));
+    }
+    BandStream.flipVertical(input, output);
+    Assert.assertEquals(original.flip("V"), new Picture(output));
+  }
+
+  @Test
+  public void composedLutMatchesOperationsInTurn() {
+    Picture rainbow = new Picture("images/rainbow64x64doc.png");
+    ChannelLut levels = ChannelLut.levels(10, 240);
+    ChannelLut chain = ChannelLut.invert().andThen(ChannelLut.darken(2))
+        .andThen(ChannelLut.gamma(2.2)).andThen(ChannelLut.brightness(-10))
+        .andThen(ChannelLut.contrast(1.5)).andThen(levels);
+    Picture inTurn = rainbow.invert().makeDark(2).gamma(2.2).brightness(-10).contrast(1.5)
+        .applyLut(levels);
+    Assert.assertEquals(inTurn, rainbow.applyLut(chain));
+    Assert.assertEquals(inTurn, rainbow.pipeline().invert().makeDark(2).gamma(2.2)
+        .brightness(-10).contrast(1.5).lut(levels).render());
+    Assert.assertEquals(rainbow, rainbow.gamma(1).brightness(0).contrast(1)
+        .applyLut(ChannelLut.identity()));
+  }
+
+  @Test
+  public void gammaKnownValues() throws IOException {
+    // 255 * (128 / 255)^(1 / 2.2) = 186.4
+    String input = savePicture("in.png", 3, 1, 0x000000, 0x808080, 0x0080ff);
+    Assert.assertEquals(picture(3, 1, 0x000000, 0xbababa, 0x00baff),
+        TestSuiteHelper.runMain(tmpFolder, "gamma", "2.2", input));
+    ChannelLut gamma = ChannelLut.gamma(2.2);
+    Assert.assertEquals(0x00baff, gamma.apply(0x0080ff));
+  }
+
+  @Test
+  public void brightnessClampsAtWhite() throws IOException {
+    String input = savePicture("in.png", 3, 1, 0x000000, 0x80dc10, 0xffffff);
+    Assert.assertEquals(picture(3, 1, 0x282828, 0xa8ff38, 0xffffff),
+        TestSuiteHelper.runMain(tmpFolder, "brightness", "40", input));
+  }
+
+  @Test
+  public void brightnessAndContrastKnownValues() {
+    Assert.assertEquals(0x000028, ChannelLut.brightness(-40).apply(0x142850));
+    // Mid-grey, 127.5, is fixed, so 127 and 128 move apart by the factor: 126.5 and 128.5
+    // round half up to 127 and 129, and 64 goes to 0.5, which rounds to 1.
+    Assert.assertEquals(0x7f8101, ChannelLut.contrast(2).apply(0x7f8040));
+    Assert.assertEquals(0x808080, ChannelLut.contrast(0).apply(0x00ff37));
+    Assert.assertEquals(0x12ab7f, ChannelLut.contrast(1).apply(0x12ab7f));
+  }
+
+  @Test
+  public void pipelineContrastThenGrayscaleKnownValues() throws IOException {
+    // Contrast 0.25 maps 0, 128 and 255 to 95.6, 127.6 and 159.4, so 96 + 128 + 159 = 383,
+    // whose third truncates to 127.
+    String input = savePicture("in.png", 1, 1, 0x0080ff);
+    Assert.assertEquals(picture(1, 1, 0x7f7f7f),
+        TestSuiteHelper.runMain(tmpFolder, "pipeline", "contrast", "0.25", "grayscale", input));
+  }
+
+  @Test
+  public void vectorKernelsMatchScalar() {
+    PixelKernels vector = PixelKernels.vector();
+    Assume.assumeNotNull(vector);
+    PixelKernels scalar = PixelKernels.scalar();
+    int length = (1 << 16) + 5;
+    int[] src = new int[length];
+    Random random = new Random(22);
+    for (int i = 0; i < length; i++) {
+      src[i] = i < 256 ? i * 0x010101 : random.nextInt();
+    }
+    int[] expected = new int[length];
+    int[] actual = new int[length];
+    scalar.invert(src, expected, 3, length);
+    vector.invert(src, actual, 3, length);
+    Assert.assertArrayEquals(expected, actual);
+    scalar.grayScale(src, expected, 3, length);
+    vector.grayScale(src, actual, 3, length);
+    Assert.assertArrayEquals(expected, actual);
+    for (int magnitude = -3; magnitude <= 300; magnitude += magnitude == -1 ? 2 : 1) {
+      scalar.makeDark(src, expected, 0, length, magnitude);
+      vector.makeDark(src, actual, 0, length, magnitude);
+      Assert.assertArrayEquals("magnitude " + magnitude, expected, actual);
+    }
+    for (int count : new int[] {1, 2, 3, 7, 255, 4096, 32767, 32768, 100000}) {
+      int[][] totals = new int[3][length];
+      for (int[] channel : totals) {
+        for (int i = 0; i < length; i++) {
+          channel[i] = i < 256 * count && i < length / 2 ? i : random.nextInt(255 * count + 1);
+        }
+      }
+      scalar.average(totals[0], totals[1], totals[2], count, expected, 0, length);
+      vector.average(totals[0], totals[1], totals[2], count, actual, 0, length);
+      Assert.assertArrayEquals("count " + count, expected, actual);
+      int[][] sums = {totals[0].clone(), totals[1].clone(), totals[2].clone()};
+      scalar.accumulate(src, 5, totals[0], totals[1], totals[2], 1, length - 4);
+      vector.accumulate(src, 5, sums[0], sums[1], sums[2], 1, length - 4);
+      Assert.assertArrayEquals(totals, sums);
+    }
+    int[] values = new int[length];
+    float[] floatValues = new float[length];
+    for (int i = 0; i < length; i++) {
+      values[i] = random.nextInt(256);
+      floatValues[i] = values[i];
+    }
+    int[] expectedSums = new int[length];
+    int[] actualSums = new int[length];
+    float[] expectedFloats = new float[length];
+    float[] actualFloats = new float[length];
+    for (int weight : new int[] {-7, 1, 3}) {
+      scalar.multiplyAdd(expectedSums, values, 2, weight, 1, length - 2);
+      vector.multiplyAdd(actualSums, values, 2, weight, 1, length - 2);
+      scalar.multiplyAdd(expectedFloats, floatValues, 2, weight * 0.137f, 1, length - 2);
+      vector.multiplyAdd(actualFloats, floatValues, 2, weight * 0.137f, 1, length - 2);
+    }
+    Assert.assertArrayEquals(expectedSums, actualSums);
+    Assert.assertArrayEquals(expectedFloats, actualFloats, 0);
+  }
+
+  @Test
+  public void mirrorBorderReflectsWithoutRepeatingEdge() {
+    int[] expected = {2, 1, 0, 1, 2, 3, 2, 1, 0, 1};
+    for (int c = -2; c < 8; c++) {
+      Assert.assertEquals(expected[c + 2], BorderMode.MIRROR.index(c, 4));
+    }
+    Assert.assertEquals(0, BorderMode.MIRROR.index(-5, 1));
+  }
+
+  @Test
+  public void convolutionMatchesNaiveSum() {
+    Picture picture = randomPicture(37, 23, 24);
+    Kernel[] kernels = {Kernel.sharpen(), Kernel.emboss(), Kernel.sobelX(),
+        Kernel.of(5, 3, new int[] {1, 4, 6, 4, 1, 2, 8, 12, 8, 2, 1, 4, 6, 4, 1}, 64, 3),
+        Kernel.of(1, 5, new int[] {-1, 2, 5, 2, -1}, 7, 0)};
+    for (int k = 0; k < kernels.length; k++) {
+      for (BorderMode mode : BorderMode.values()) {
+        Picture expected = naiveConvolution(picture, kernels[k], mode);
+        Assert.assertEquals("kernel " + k + " " + mode, expected,
+            picture.convolve(kernels[k], mode));
+        Assert.assertEquals(expected, Convolution.apply(picture, kernels[k], mode, false));
+      }
+    }
+  }
+
+  @Test
+  public void separableGaussianStaysCloseToDirect() {
+    Picture picture = randomPicture(40, 30, 25);
+    Kernel gaussian = Kernel.gaussian(1.5);
+    Assert.assertTrue(gaussian.isSeparable());
+    int[] separate = picture.convolve(gaussian, BorderMode.MIRROR).raster();
+    int[] direct = Convolution.apply(picture, gaussian, BorderMode.MIRROR, false).raster();
+    for (int i = 0; i < direct.length; i++) {
+      for (int shift = 0; shift < 24; shift += 8) {
+        int difference = ((separate[i] >> shift) & 0xff) - ((direct[i] >> shift) & 0xff);
+        Assert.assertTrue(Math.abs(difference) <= 1);
+      }
+    }
+  }
+
+  @Test
+  public void sharpenMirrorKnownValues() throws IOException {
+    // Blue varies and red and green are flat, which sharpen leaves alone. At the centre,
+    // 5 * 80 - 60 - 90 - 60 - 90 = 100; at the top left corner the mirrored neighbours are all
+    // 60, so 5 * 50 - 4 * 60 = 10.
+    String input = savePicture("in.png", 3, 3, 0x404032, 0x40403c, 0x404046, 0x40403c,
+        0x404050, 0x40405a, 0x404046, 0x40405a, 0x404064);
+    Assert.assertEquals(picture(3, 3, 0x40400a, 0x404014, 0x404032, 0x404014, 0x404064,
+        0x404078, 0x404032, 0x404078, 0x40408c),
+        TestSuiteHelper.runMain(tmpFolder, "sharpen", "mirror", input));
+  }
+
+  @Test
+  public void convolveBoxKnownValues() throws IOException {
+    // Only the centre's window fits; (10 + 20 + ... + 80 + 201) / 9 = 62.3 rounds to 62.
+    String input = savePicture("in.png", 3, 3, 0x0a, 0x14, 0x1e, 0x28, 0x32, 0x3c, 0x46, 0x50,
+        0xc9);
+    Assert.assertEquals(picture(3, 3, 0x0a, 0x14, 0x1e, 0x28, 0x3e, 0x3c, 0x46, 0x50, 0xc9),
+        TestSuiteHelper.runMain(tmpFolder, "convolve", "3x3", "1,1,1,1,1,1,1,1,1", input));
+  }
+
+  @Test
+  public void pipelineEdgeKnownValues() throws IOException {
+    // At the centre gx = (14 + 28 + 30) - (10 + 20 + 20) = 22 and
+    // gy = (20 + 44 + 30) - (10 + 24 + 14) = 46, so the magnitude is sqrt(2600) = 51.0.
+    String input = savePicture("in.png", 3, 3, 0x0a, 0x0c, 0x0e, 0x0a, 0x0c, 0x0e, 0x14, 0x16,
+        0x1e);
+    Assert.assertEquals(picture(3, 3, 0x0a, 0x0c, 0x0e, 0x0a, 0x33, 0x0e, 0x14, 0x16, 0x1e),
+        TestSuiteHelper.runMain(tmpFolder, "pipeline", "edge", input));
+  }
+
+  @Test
+  public void cachedCommandHitsForUnchangedInput() throws IOException {
+    File cache = tmpFolder.newFolder("cache");
+    File input = tmpFolder.newFile("in.png");
+    Files.copy(Paths.get("images/rainbow64x64doc.png"), input.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    for (String output : new String[] {"first.png", "second.png"}) {
+      PictureProcessor.main(new String[] {"--cache", cache.getPath(), "rotate", "90",
+          input.getPath(), new File(tmpFolder.getRoot(), output).getPath()});
+    }
+    Picture expected = new Picture("images/rainbow64x64doc.png").rotate(90);
+    Assert.assertEquals(expected,
+        new Picture(new File(tmpFolder.getRoot(), "first.png").getPath()));
+    Assert.assertEquals(expected,
+        new Picture(new File(tmpFolder.getRoot(), "second.png").getPath()));
+    new Picture("images/sunset64x32.png").saveAs(input.getPath());
+    PictureProcessor.main(new String[] {"--cache", cache.getPath(), "rotate", "90",
+        input.getPath(), new File(tmpFolder.getRoot(), "third.png").getPath()});
+    Assert.assertEquals(new Picture("images/sunset64x32.png").rotate(90),
+        new Picture(new File(tmpFolder.getRoot(), "third.png").getPath()));
+    ResultCache.Stats stats = new ResultCache(cache.toPath(), 1 << 20).stats();
+    Assert.assertEquals(1, stats.hits);
+    Assert.assertEquals(2, stats.misses);
+    Assert.assertEquals(2, stats.entries);
+  }
+
+  @Test
+  public void cachedCompressIgnoresThreadsAndLabelCache() throws IOException {
+    File cache = tmpFolder.newFolder("cache");
+    String[][] options = {{"--threads", "1"}, {"--threads", "4", "--label-cache-bits", "0"},
+        {"--seed", "7"}};
+    for (int run = 0; run < options.length; run++) {
+      List<String> args = new ArrayList<>(List.of("--cache", cache.getPath(), "compress",
+          "--mini-batch", "256"));
+      args.addAll(Arrays.asList(options[run]));
+      args.add("images/rainbow64x64doc.png");
+      args.add(new File(tmpFolder.getRoot(), run + ".png").getPath());
+      PictureProcessor.main(args.toArray(new String[0]));
+    }
+    ResultCache.Stats stats = new ResultCache(cache.toPath(), 1 << 20).stats();
+    Assert.assertEquals(1, stats.hits);
+    Assert.assertEquals(2, stats.misses);
+    Assert.assertEquals(new Picture(new File(tmpFolder.getRoot(), "0.png").getPath()),
+        new Picture(new File(tmpFolder.getRoot(), "1.png").getPath()));
+  }
+
+  @Test
+  public void cachedCommandWithReportAlwaysRuns() throws IOException {
+    File cache = tmpFolder.newFolder("cache");
+    String output = new File(tmpFolder.getRoot(), "out.png").getPath();
+    for (int run = 0; run < 2; run++) {
+      ByteArrayOutputStream printed = new ByteArrayOutputStream();
+      PrintStream stdout = System.out;
+      System.setOut(new PrintStream(printed, true));
+      try {
+        PictureProcessor.main(new String[] {"--cache", cache.getPath(), "compress",
+            "--mini-batch", "256", "--report", "images/rainbow64x64doc.png", output});
+      } finally {
+        System.setOut(stdout);
+      }
+      Assert.assertFalse("run " + run, printed.toString().trim().isEmpty());
+    }
+    ResultCache.Stats stats = new ResultCache(cache.toPath(), 1 << 20).stats();
+    Assert.assertEquals(0, stats.hits + stats.misses);
+    Assert.assertEquals(0, stats.entries);
+  }
+
+  @Test
+  public void resultCacheEvictsLeastRecentlyUsed() throws Exception {
+    ResultCache cache = new ResultCache(tmpFolder.newFolder("cache").toPath(), 250);
+    File output = tmpFolder.newFile("output");
+    String[] keys = new String[3];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = cache.key(List.of("op", Integer.toString(i)), List.of());
+      Files.write(output.toPath(), new byte[100]);
+      cache.store(keys[i], output.toPath());
+      // Keeps the entries' modification times apart on coarse file systems.
+      Thread.sleep(20);
+      if (i == 1) {
+        Assert.assertTrue(cache.restore(keys[0], output.toPath()));
+        Thread.sleep(20);
+      }
+    }
+    Assert.assertTrue(cache.restore(keys[0], output.toPath()));
+    Assert.assertFalse(cache.restore(keys[1], output.toPath()));
+    Assert.assertTrue(cache.restore(keys[2], output.toPath()));
+    ResultCache.Stats stats = cache.stats();
+    Assert.assertEquals(1, stats.evictions);
+    Assert.assertEquals(2, stats.entries);
+    Assert.assertEquals(200, stats.bytes);
+  }
+
+  private static Picture picture(int width, int height, int... pixels) {
+    Picture picture = new Picture(width, height);
+    picture.setRGB(0, 0, width, height, pixels, 0, width);
+    return picture;
+  }
+
+  /**
+   * Saves the picture with the given pixels, row by row, in the temporary folder and returns its
+   * path.
+   */
+  private String savePicture(String name, int width, int height, int... pixels) {
+    String path = new File(tmpFolder.getRoot(), name).getPath();
+    picture(width, height, pixels).saveAs(path);
+    return path;
+  }
+
+  private static Picture randomPicture(int width, int height, long seed) {
+    Picture picture = new Picture(width, height);
+    Random random = new Random(seed);
+    int[] raster = picture.writableRaster();
+    for (int i = 0; i < raster.length; i++) {
+      raster[i] = random.nextInt() & 0xffffff;
+    }
+    return picture;
+  }
+
+  /**
+   * The textbook convolution, in exact rational arithmetic for integer kernels.
+   */
+  private static Picture naiveConvolution(Picture picture, Kernel kernel, BorderMode mode) {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    int radiusX = kernel.getWidth() / 2;
+    int radiusY = kernel.getHeight() / 2;
+    int[] weights = kernel.intWeights();
+    int divisor = kernel.divisor();
+    Picture output = new Picture(width, height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        boolean inside = x >= radiusX && x < width - radiusX && y >= radiusY
+            && y < height - radiusY;
+        if (mode == BorderMode.IGNORE && !inside) {
+          output.writableRaster()[y * width + x] = picture.raster()[y * width + x];
+          continue;
+        }
+        int[] channels = new int[3];
+        for (int c = 0; c < 3; c++) {
+          long total = 0;
+          for (int dy = -radiusY; dy <= radiusY; dy++) {
+            for (int dx = -radiusX; dx <= radiusX; dx++) {
+              int rgb = picture.raster()[mode.index(y + dy, height) * width
+                  + mode.index(x + dx, width)];
+              total += (long) weights[(dy + radiusY) * kernel.getWidth() + dx + radiusX]
+                  * ((rgb >> (16 - 8 * c)) & 0xff);
+            }
+          }
+          long rounded = Math.floorDiv(2 * total + divisor, 2L * divisor)
+              + (long) kernel.bias();
+          channels[c] = (int) Math.max(0, Math.min(255, rounded));
+        }
+        output.writableRaster()[y * width + x] =
+            Picture.pack(channels[0], channels[1], channels[2]);
+      }
+    }
+    return output;
+  }
+
+  @Test
+  public void pipelineGrayscaleRainbow() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/rainbowGS64x64doc.png"),
+        TestSuiteHelper.runMain(tmpFolder, "pipeline", "grayscale", "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void pipelineInvertTwiceRainbow() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/rainbow64x64doc.png"),
+        TestSuiteHelper.runMain(
+            tmpFolder, "pipeline", "invert", "invert", "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void pipelineFlipHVBlueRect() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/blueR18064x32doc.png"),
+        TestSuiteHelper.runMain(
+            tmpFolder, "pipeline", "flip", "H", "flip", "V", "images/blue64x32doc.png"));
+  }
+
+  @Test
+  public void pipelineRotateThenBlurSunset() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/sunsetBlur64x32.png"),
+        TestSuiteHelper.runMain(tmpFolder, "pipeline", "rotate", "90", "rotate", "270", "blur",
+            "images/sunset64x32.png"));
+  }
+
+  @Test
+  public void pipelineTransposeFlipHBlueRect() throws IOException {
+    Assert.assertEquals(
+        new Picture("images/blueR9064x32doc.png"),
+        TestSuiteHelper.runMain(
+            tmpFolder, "pipeline", "transpose", "flip", "H", "images/blue64x32doc.png"));
+  }
+}